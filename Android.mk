@@ -40,7 +40,8 @@ include $(BUILD_PREBUILT)
 include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := optional
 LOCAL_MODULE := libremote_events_jni
-LOCAL_SRC_FILES:= jni/org_mitre_svmp_events_BaseServer.c
+LOCAL_SRC_FILES:= jni/org_mitre_svmp_events_BaseServer.c \
+	jni/org_mitre_svmp_events_UinputTouchDevice.c
 LOCAL_MODULE_PATH := $(TARGET_OUT)/lib
 LOCAL_SHARED_LIBRARIES := liblog
 include $(BUILD_SHARED_LIBRARY)
@@ -18,118 +18,289 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <unistd.h>
+#include <fcntl.h>
+#include <time.h>
 #include <sys/time.h>
 #include <sys/types.h>
 #include <sys/socket.h>
 #include <sys/un.h>
-#include <unistd.h>
+#include <sys/uio.h>
 #include <errno.h>
 #define LOG_TAG "svmp_events_jni"
+#ifdef __ANDROID__
 #include <utils/Log.h>
+#else
+/* plain Linux build, for testing without Android */
+#define ALOGD(...) fprintf(stderr, __VA_ARGS__)
+#endif
 #include "org_mitre_svmp_events_BaseServer.h"
 
-struct svmp_sensor_event_t {  
-        int type;             
-        int accuracy;         
-        long timestamp;       
-        float value[3];       
+#ifndef UNIX_PATH_MAX
+#define UNIX_PATH_MAX 108
+#endif
+#ifndef MSG_NOSIGNAL
+#define MSG_NOSIGNAL 0
+#endif
+
+/* reconnect backoff, doubled after every failed attempt */
+#define MIN_RETRY_MS 100
+#define MAX_RETRY_MS 5000
+
+struct svmp_sensor_event_t {
+        int type;
+        int accuracy;
+        long timestamp;
+        float value[3];
 };
 
+/*
+ * The Java side encodes a batch of events into a direct ByteBuffer, in native byte order, as records of
+ *   int type, int accuracy, long long timestamp, float value[3]
+ * which are copied into svmp_sensor_event_t here, since its layout depends on the ABI.
+ */
+#define RECORD_SIZE org_mitre_svmp_events_BaseServer_SENSOR_RECORD_SIZE
+
 /*
  *
  *12/05/2012
  *This is the UNIX socket JNI code. We connect to an existing UNIX socket that was initialized in init.rc
  *
+ * The connection is owned by this file: if the socket isn't there yet, or breaks, writes try to reconnect
+ * with a backoff, and drop events until they succeed. A batch of events is written with one gathering sendmsg(), which
+ * never blocks; events that don't fit in the socket buffer are dropped, and the tail of a partially written
+ * event is kept and sent first next time, so the stream never loses its framing. Writes come from the one
+ * sensor thread, so there is no locking.
  */
 
-jint Java_org_mitre_svmp_events_BaseServer_InitSockClient( JNIEnv* env, jobject thiz,jstring jpath)
+static char sock_path[UNIX_PATH_MAX];
+static int sock_fd = -1;
+static long long next_retry_ms = 0;
+static int retry_ms = MIN_RETRY_MS;
+
+/* the unwritten tail of the last event */
+static char pending[sizeof(struct svmp_sensor_event_t)];
+static size_t pending_len = 0;
+
+/* the batch being written, grown as needed */
+static struct svmp_sensor_event_t *batch = NULL;
+static int batch_capacity = 0;
+
+static jlong dropped = 0;
+static jlong connects = 0;
+
+static long long now_ms(void)
 {
-	int clifd,newfd,fdmax, i,n;
-	struct sockaddr_un addr;
-	struct sockaddr_un  cli_addr, serv_addr;
-	const char *path=(*env)->GetStringUTFChars( env, jpath , NULL );
-	
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (long long) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+static void disconnect(void)
+{
+	if (sock_fd >= 0)
+		close(sock_fd);
+	sock_fd = -1;
+	pending_len = 0;
+}
+
+/* returns 0 once connected; otherwise schedules the next attempt */
+static int try_connect(void)
+{
+	struct sockaddr_un serv_addr;
+	int clifd;
+	long long now = now_ms();
+
+	if (sock_fd >= 0)
+		return 0;
+	if (sock_path[0] == '\0' || now < next_retry_ms)
+		return -1;
+
 	bzero((char *) &serv_addr, sizeof(serv_addr));
 	serv_addr.sun_family = AF_UNIX;
- 	// pass the path in as an argument
-	strncpy(serv_addr.sun_path, path, UNIX_PATH_MAX-1);
+	strncpy(serv_addr.sun_path, sock_path, UNIX_PATH_MAX-1);
 
 	if ((clifd = socket(AF_UNIX,SOCK_STREAM,0)) < 0){
 		ALOGD("error opening socket :%s\n", strerror(errno));
-		return -1;
+		goto retry;
 	}
-
 	if (connect(clifd, (struct sockaddr *) &serv_addr, sizeof(serv_addr)) < 0) {
-		ALOGD("error with connect():%s\n", strerror(errno));
+		/* only log the first failure of a run, the socket may not exist for a while */
+		if (retry_ms == MIN_RETRY_MS)
+			ALOGD("error with connect():%s\n", strerror(errno));
+		close(clifd);
+		goto retry;
+	}
+	fcntl(clifd, F_SETFL, fcntl(clifd, F_GETFL) | O_NONBLOCK);
+
+	ALOGD("clifd is %d\n",clifd);
+	sock_fd = clifd;
+	retry_ms = MIN_RETRY_MS;
+	connects++;
+	return 0;
+
+retry:
+	next_retry_ms = now + retry_ms;
+	retry_ms = retry_ms * 2 > MAX_RETRY_MS ? MAX_RETRY_MS : retry_ms * 2;
+	return -1;
+}
+
+/*
+ * Class:     org_mitre_svmp_events_BaseServer
+ * Method:    InitSockClient
+ * Signature: (Ljava/lang/String;)I
+ * Remembers the path and tries to connect; returns the fd, or -1 if writes will keep trying.
+ */
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_InitSockClient
+  (JNIEnv* env, jobject thiz, jstring jpath)
+{
+	const char *path=(*env)->GetStringUTFChars( env, jpath , NULL );
+	if (path == NULL)
 		return -1;
-        }
+	strncpy(sock_path, path, UNIX_PATH_MAX-1);
 	(*env)->ReleaseStringUTFChars(env, jpath, path);
-	ALOGD("clifd is %d\n",clifd);
 
-	return clifd;
+	disconnect();
+	next_retry_ms = 0;
+	retry_ms = MIN_RETRY_MS;
+	try_connect();
+	return sock_fd;
 }
+
+/* writes the pending tail and the batch without blocking; returns the number of bytes written, 0 if the
+ * socket is full, or -1 if the connection broke */
+static ssize_t write_some(const char *buf, size_t len)
+{
+	struct iovec iov[2];
+	struct msghdr msg;
+	int iovcnt = 0;
+	ssize_t n;
+
+	if (pending_len > 0) {
+		iov[iovcnt].iov_base = pending;
+		iov[iovcnt].iov_len = pending_len;
+		iovcnt++;
+	}
+	iov[iovcnt].iov_base = (void *) buf;
+	iov[iovcnt].iov_len = len;
+	iovcnt++;
+
+	/* sendmsg() is writev() with flags, so a closed reader can't raise SIGPIPE */
+	memset(&msg, 0, sizeof(msg));
+	msg.msg_iov = iov;
+	msg.msg_iovlen = iovcnt;
+	do {
+		n = sendmsg(sock_fd, &msg, MSG_DONTWAIT | MSG_NOSIGNAL);
+	} while (n < 0 && errno == EINTR);
+	if (n < 0) {
+		if (errno == EAGAIN || errno == EWOULDBLOCK)
+			return 0;
+		ALOGD("error with write,():%s, fd is %d\n", strerror(errno), sock_fd);
+		disconnect();
+		next_retry_ms = now_ms() + retry_ms;
+		return -1;
+	}
+	return n;
+}
+
 /*
  * Class:     org_mitre_svmp_events_BaseServer
- * Method:    SockClientWrite
- * Signature: (ILorg/mitre/svmp/protocol/SVMPSensorEventMessage;)I
+ * Method:    SockClientWriteBatch
+ * Signature: (Ljava/nio/ByteBuffer;I)I
+ * Writes "count" records from the direct buffer; returns the number of events written, counting one that
+ * was cut off, since the next write finishes it. The events written are always the first ones.
  */
-JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientWrite
-  (JNIEnv* env, jobject thiz, jint fd, jobject SensorObj) 
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientWriteBatch
+  (JNIEnv* env, jobject thiz, jobject buffer, jint count)
 {
-        int bytes=0;
-	int ssize = sizeof(struct svmp_sensor_event_t);
-	jshortArray jarr;
-	jfloat *carr;
-	struct svmp_sensor_event_t evt;
-	jfieldID fid;
-	jclass SensorClass = (*env)->GetObjectClass(env, SensorObj);
-	if (SensorClass == NULL){
-	         ALOGD("Class not found!\n");
-	         return -1;
-	} 
-	jmethodID midGetAccuracy = (*env)->GetMethodID(env,SensorClass,"getAccuracy","()I");
-	evt.accuracy = (*env)->CallIntMethod(env, SensorObj, midGetAccuracy);
-
-	//accuracy
-	fid = (*env)->GetFieldID(env, SensorClass, "accuracy", "I");
-	if (fid == NULL ) {
-		ALOGD("get accuracy error!\n");
+	const char *records;
+	size_t size, written;
+	ssize_t n;
+	int i, whole;
+
+	if (count <= 0)
+		return 0;
+	records = (*env)->GetDirectBufferAddress(env, buffer);
+	if (records == NULL || (*env)->GetDirectBufferCapacity(env, buffer) < (jlong) count * RECORD_SIZE
+			|| try_connect() < 0) {
+		dropped += count;
+		return 0;
+	}
+
+	if (count > batch_capacity) {
+		struct svmp_sensor_event_t *grown = realloc(batch, count * sizeof(struct svmp_sensor_event_t));
+		if (grown == NULL) {
+			dropped += count;
+			return 0;
+		}
+		batch = grown;
+		batch_capacity = count;
+	}
+	memset(batch, 0, count * sizeof(struct svmp_sensor_event_t));
+	for (i = 0; i < count; i++) {
+		const char *record = records + i * RECORD_SIZE;
+		long long timestamp;
+		memcpy(&batch[i].type, record, 4);
+		memcpy(&batch[i].accuracy, record + 4, 4);
+		memcpy(&timestamp, record + 8, 8);
+		batch[i].timestamp = (long) timestamp;
+		memcpy(batch[i].value, record + 16, 12);
 	}
-	evt.accuracy = (*env)->GetIntField(env, SensorObj, fid);
-	// type
-	fid = (*env)->GetFieldID(env, SensorClass, "type", "I");
-	evt.type = (*env)->GetIntField(env, SensorObj, fid);
-	// timestamp
-	fid = (*env)->GetFieldID(env, SensorClass, "timestamp", "J");
-	evt.timestamp = (*env)->GetLongField(env, SensorObj, fid);
-	// value array
-	fid = (*env)->GetFieldID(env, SensorClass, "values", "[F");
-	jarr = (*env)->GetObjectField(env, SensorObj, fid);
-	carr = (*env)->GetFloatArrayElements(env,jarr,NULL);
-	if (carr == NULL ){
-		// some error occured
-		ALOGD("error accessing value array\n");
+
+	size = count * sizeof(struct svmp_sensor_event_t);
+	n = write_some((const char *) batch, size);
+	if (n <= 0 || (size_t) n < pending_len) {
+		/* none of the batch went out; keep whatever is left of the old tail */
+		if (n > 0) {
+			memmove(pending, pending + n, pending_len - n);
+			pending_len -= n;
+		}
+		dropped += count;
 		return 0;
 	}
-	evt.value[0] = carr[0];
-	evt.value[1] = carr[1];
-	evt.value[2] = carr[2];
-	(*env)->ReleaseFloatArrayElements(env, jarr,carr, 0);
-	//ALOGD("Sending: type:%d,accuracy: %d,timestamp:%ld,value[0]%d,value[1]%d,value[2]%d\n",
-	//	evt.type, evt.accuracy, evt.timestamp, 
-	//	evt.value[0],evt.value[1],evt.value[2]);
-
-	// finally write to socket..
-	int err = write(fd,(char*)&evt,sizeof(evt));
-	if ( err < 1) 
-		ALOGD("error with write,():%s, fd is %d\n", strerror(errno),fd);
-	//ALOGD("wrote  %d bytes on socket, fd %d\n",err, fd );
-
-	return bytes;
+
+	written = n - pending_len;
+	pending_len = 0;
+	whole = written / sizeof(struct svmp_sensor_event_t);
+	if (written % sizeof(struct svmp_sensor_event_t) != 0) {
+		/* the event that was cut off gets finished next time, the ones after it are lost */
+		size_t sent = written % sizeof(struct svmp_sensor_event_t);
+		pending_len = sizeof(struct svmp_sensor_event_t) - sent;
+		memcpy(pending, (const char *) &batch[whole] + sent, pending_len);
+		dropped += count - whole - 1;
+		return whole + 1;
+	}
+	dropped += count - whole;
+	return whole;
 }
+
 /* Close connection */
-jint Java_org_mitre_svmp_events_BaseServer_SockClientClose( JNIEnv* env,
-						jobject thiz, jint fd )
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientClose
+  (JNIEnv* env, jobject thiz)
+{
+	disconnect();
+	sock_path[0] = '\0';
+	return 0;
+}
+
+/*
+ * Class:     org_mitre_svmp_events_BaseServer
+ * Method:    SockClientDropped
+ * Signature: ()J
+ * The number of events dropped because the socket was missing, broken or full.
+ */
+JNIEXPORT jlong JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientDropped
+  (JNIEnv* env, jobject thiz)
+{
+	return dropped;
+}
+
+/*
+ * Class:     org_mitre_svmp_events_BaseServer
+ * Method:    SockClientConnects
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientConnects
+  (JNIEnv* env, jobject thiz)
 {
-	return close (fd);
+	return connects;
 }
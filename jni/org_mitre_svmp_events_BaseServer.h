@@ -7,33 +7,47 @@
 #ifdef __cplusplus
 extern "C" {
 #endif
-#undef org_mitre_svmp_events_BaseServer_BUFFER_SIZE
-#define org_mitre_svmp_events_BaseServer_BUFFER_SIZE 8192L
-
-
+#undef org_mitre_svmp_events_BaseServer_SENSOR_RECORD_SIZE
+#define org_mitre_svmp_events_BaseServer_SENSOR_RECORD_SIZE 28L
 /*
  * Class:     org_mitre_svmp_events_BaseServer
  * Method:    InitSockClient
  * Signature: (Ljava/lang/String;)I
  */
 JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_InitSockClient
-  (JNIEnv *, jclass, jstring);
+  (JNIEnv *, jobject, jstring);
 
 /*
  * Class:     org_mitre_svmp_events_BaseServer
- * Method:    SockClientWrite
- * Signature: (ILorg/mitre/svmp/protocol/SVMPSensorEventMessage;)I
+ * Method:    SockClientWriteBatch
+ * Signature: (Ljava/nio/ByteBuffer;I)I
  */
-JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientWrite
-  (JNIEnv *, jclass, jint, jobject);
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientWriteBatch
+  (JNIEnv *, jobject, jobject, jint);
 
 /*
  * Class:     org_mitre_svmp_events_BaseServer
  * Method:    SockClientClose
- * Signature: (I)I
+ * Signature: ()I
  */
 JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientClose
-  (JNIEnv *, jclass, jint);
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     org_mitre_svmp_events_BaseServer
+ * Method:    SockClientDropped
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientDropped
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     org_mitre_svmp_events_BaseServer
+ * Method:    SockClientConnects
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_org_mitre_svmp_events_BaseServer_SockClientConnects
+  (JNIEnv *, jobject);
 
 #ifdef __cplusplus
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 The MITRE Corporation, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this work except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <string.h>
+#include <stdio.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <errno.h>
+#include <sys/ioctl.h>
+#include <linux/input.h>
+#include <linux/uinput.h>
+#define LOG_TAG "svmp_events_jni"
+#ifdef __ANDROID__
+#include <utils/Log.h>
+#else
+/* plain Linux build, for testing the device without Android */
+#define ALOGD(...) fprintf(stderr, __VA_ARGS__)
+#endif
+#include "org_mitre_svmp_events_UinputTouchDevice.h"
+
+/* the most events the Java side puts in one write, a few per slot plus BTN_TOUCH and SYN_REPORT */
+#define MAX_FRAME_EVENTS 256
+
+/*
+ * Virtual multitouch screen on top of /dev/uinput.
+ * The Java side builds evdev multitouch protocol B frames (ABS_MT_SLOT, ABS_MT_TRACKING_ID,
+ * ABS_MT_POSITION_X/Y, BTN_TOUCH, SYN_REPORT) and hands them over as (type, code, value) triples;
+ * this code only creates the device and writes the events. Only Linux headers are used, so it can be
+ * built and exercised on a desktop Linux host, e.g. with evtest.
+ */
+
+/* returns 0, or the errno of the failed ioctl */
+static int set_bit(int fd, unsigned long request, int bit)
+{
+	int err;
+
+	if (ioctl(fd, request, bit) < 0) {
+		err = errno;
+		ALOGD("uinput ioctl %lu(%d) failed: %s\n", request, bit, strerror(err));
+		return err;
+	}
+	return 0;
+}
+
+/*
+ * Class:     org_mitre_svmp_events_UinputTouchDevice
+ * Method:    nativeOpen
+ * Signature: (Ljava/lang/String;III)I
+ * Returns the device fd, or -errno.
+ */
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_UinputTouchDevice_nativeOpen
+  (JNIEnv* env, jclass clazz, jstring jname, jint width, jint height, jint slots)
+{
+	struct uinput_user_dev dev;
+	int fd, err;
+	ssize_t written;
+	const char *name;
+
+	fd = open("/dev/uinput", O_WRONLY | O_NONBLOCK);
+	if (fd < 0)
+		fd = open("/dev/input/uinput", O_WRONLY | O_NONBLOCK);
+	if (fd < 0) {
+		err = errno;
+		ALOGD("error opening uinput: %s\n", strerror(err));
+		return -err;
+	}
+
+	/* each failure sets err itself, errno may be stale or clobbered by logging by the time we get to fail */
+	if ((err = set_bit(fd, UI_SET_EVBIT, EV_SYN)) != 0
+			|| (err = set_bit(fd, UI_SET_EVBIT, EV_KEY)) != 0
+			|| (err = set_bit(fd, UI_SET_KEYBIT, BTN_TOUCH)) != 0
+			|| (err = set_bit(fd, UI_SET_EVBIT, EV_ABS)) != 0
+			|| (err = set_bit(fd, UI_SET_ABSBIT, ABS_MT_SLOT)) != 0
+			|| (err = set_bit(fd, UI_SET_ABSBIT, ABS_MT_TRACKING_ID)) != 0
+			|| (err = set_bit(fd, UI_SET_ABSBIT, ABS_MT_POSITION_X)) != 0
+			|| (err = set_bit(fd, UI_SET_ABSBIT, ABS_MT_POSITION_Y)) != 0)
+		goto fail;
+#ifdef UI_SET_PROPBIT
+	/* a direct input device is what makes Android treat it as a touchscreen rather than a touchpad */
+	if ((err = set_bit(fd, UI_SET_PROPBIT, INPUT_PROP_DIRECT)) != 0)
+		goto fail;
+#endif
+
+	memset(&dev, 0, sizeof(dev));
+	name = (*env)->GetStringUTFChars(env, jname, NULL);
+	if (name == NULL) {
+		/* an OutOfMemoryError is pending */
+		err = ENOMEM;
+		goto fail;
+	}
+	strncpy(dev.name, name, UINPUT_MAX_NAME_SIZE - 1);
+	(*env)->ReleaseStringUTFChars(env, jname, name);
+	dev.id.bustype = BUS_VIRTUAL;
+	dev.id.vendor = 0;
+	dev.id.product = 0;
+	dev.id.version = 1;
+	dev.absmin[ABS_MT_SLOT] = 0;
+	dev.absmax[ABS_MT_SLOT] = slots - 1;
+	dev.absmin[ABS_MT_TRACKING_ID] = 0;
+	dev.absmax[ABS_MT_TRACKING_ID] = 0xffff;
+	dev.absmin[ABS_MT_POSITION_X] = 0;
+	dev.absmax[ABS_MT_POSITION_X] = width - 1;
+	dev.absmin[ABS_MT_POSITION_Y] = 0;
+	dev.absmax[ABS_MT_POSITION_Y] = height - 1;
+
+	written = write(fd, &dev, sizeof(dev));
+	if (written != sizeof(dev)) {
+		/* a short write doesn't set errno */
+		err = written < 0 ? errno : EIO;
+		ALOGD("error writing uinput device setup: %s\n", strerror(err));
+		goto fail;
+	}
+	if (ioctl(fd, UI_DEV_CREATE) < 0) {
+		err = errno;
+		ALOGD("error creating uinput device: %s\n", strerror(err));
+		goto fail;
+	}
+	ALOGD("created uinput touch device %dx%d, %d slots, fd %d\n", width, height, slots, fd);
+	return fd;
+
+fail:
+	close(fd);
+	return -err;
+}
+
+/*
+ * Class:     org_mitre_svmp_events_UinputTouchDevice
+ * Method:    nativeWrite
+ * Signature: (I[II)I
+ * Writes "count" events, packed in "triples" as (type, code, value), with a single write() so that a
+ * frame can't be split. Returns the number of bytes written, or -errno.
+ */
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_UinputTouchDevice_nativeWrite
+  (JNIEnv* env, jclass clazz, jint fd, jintArray triples, jint count)
+{
+	struct input_event events[MAX_FRAME_EVENTS];
+	jint values[MAX_FRAME_EVENTS * 3];
+	ssize_t size, written;
+	int i;
+
+	if (count <= 0 || count > MAX_FRAME_EVENTS)
+		return -EINVAL;
+	/* copies rather than pins the array, it's small */
+	(*env)->GetIntArrayRegion(env, triples, 0, count * 3, values);
+	if ((*env)->ExceptionCheck(env))
+		return -EINVAL;
+
+	/* uinput stamps events with the time they are written, so the time field is left zero */
+	memset(events, 0, count * sizeof(struct input_event));
+	for (i = 0; i < count; i++) {
+		events[i].type = values[i * 3];
+		events[i].code = values[i * 3 + 1];
+		events[i].value = values[i * 3 + 2];
+	}
+
+	size = count * sizeof(struct input_event);
+	do {
+		written = write(fd, events, size);
+	} while (written < 0 && errno == EINTR);
+	if (written < 0)
+		return -errno;
+	return written;
+}
+
+/*
+ * Class:     org_mitre_svmp_events_UinputTouchDevice
+ * Method:    nativeClose
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_org_mitre_svmp_events_UinputTouchDevice_nativeClose
+  (JNIEnv* env, jclass clazz, jint fd)
+{
+	ioctl(fd, UI_DEV_DESTROY);
+	return close(fd);
+}
@@ -21,59 +21,142 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.mitre.svmp.protocol.SVMPProtocol;
 import org.mitre.svmp.protocol.SVMPProtocol.*;
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
 import org.mitre.svmp.protocol.SVMPProtocol.Response.ResponseType;
-import org.mitre.svmp.protocol.SVMPSensorEventMessage;
+import org.mitre.svmp.events.RequestDispatcher.ExecutionPolicy;
+import org.mitre.svmp.events.metrics.Metrics;
+import org.mitre.svmp.events.metrics.SnapshotWriter;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Base, 1 socket at a time, TCP Server.
  * 
- * Threaded to not completely block and ignore new connections while an
- * existing one is running, but a new connection will kick off any previous
- * logins. Only one live connection at a time is allowed.
+ * A single selector thread accepts, reads and writes all client channels, so a new connection is never
+ * blocked behind an existing one, but a new connection will kick off any previous logins. Only one live
+ * connection at a time is allowed.
+ *
+ * The connection belongs to a ClientSession. When a client that uses the session handshake disconnects, its
+ * session (and its PeerConnection) is kept for a while so that it can reconnect and resume where it left off.
  */
 public abstract class BaseServer implements Constants {
-    private ServerSocket proxySocket;
-    private BlockingQueue<Socket> clientSocketQueue;
-    private OutputStream proxyOut = null;
-    private InputStream proxyIn = null;
+    private Selector selector;
+    private ServerSocketChannel proxyChannel;
+    private volatile ClientConnection connection = null;
+    // a connection whose client stopped reading, for the selector thread to close
+    private volatile ClientConnection stalledConnection = null;
     private int proxyPort;
     private static final String TAG = BaseServer.class.getName();
+
+    // the ResponseWriter stops handing frames to a connection that has more than this many unwritten bytes
+    private static final int DEFAULT_OUTBOUND_HIGH_WATER = 256 * 1024;
+    // outbound frames are packed into pooled direct buffers of this size
+    private static final int OUTBOUND_BUFFER_SIZE = 16 * 1024;
+    private static final int OUTBOUND_BUFFERS_POOLED = 64;
+    // how long a disconnected session is kept for the client to resume, and how much output it can replay
+    private static final int DEFAULT_SESSION_RESUME_MILLIS = 15000;
+    private static final int DEFAULT_SESSION_REPLAY_RESPONSES = 256;
+    private static final int DEFAULT_SESSION_REPLAY_BYTES = 512 * 1024;
+    // Responses smaller than this are never compressed
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    // touch MOVEs that are older than this when they reach the injector are handled by its StalePolicy
+    private static final int DEFAULT_STALE_MOVE_MILLIS = 100;
+    // text longer than this is pasted instead of typed
+    private static final int DEFAULT_TEXT_PASTE_THRESHOLD = 16;
+    // sensor events that can wait for the sensor socket; a few seconds' worth at the fastest sensor rates
+    private static final int DEFAULT_SENSOR_RING_CAPACITY = 1024;
+    // faster than the SENSOR_DELAY_FASTEST rate of most devices
+    private static final int DEFAULT_SENSOR_MAX_RATE_HZ = 200;
+    // sensor events that have waited longer than this are coalesced with newer ones
+    private static final int DEFAULT_SENSOR_COALESCE_MILLIS = 20;
+
+    // touch and key input has its own high priority thread, so it is never queued behind bulk traffic
+    private static final String LANE_INPUT = "input";
+    // bulk lanes share a thread pool, each keeps its own Requests in order
+    private static final String LANE_APPS = "apps";
+    private static final String LANE_INTENT = "intent";
+    private static final String LANE_CONFIG = "config";
+    private static final String LANE_LOCATION = "location";
+    private static final String LANE_WEBRTC = "webrtc";
     
+    // the sensor socket connection is kept by the native code, which reconnects it if needed; writes never
+    // block, and events that can't be written are dropped and counted
+    // events are written in batches, encoded as SENSOR_RECORD_SIZE records by the SensorBatchEncoder
+    static final int SENSOR_RECORD_SIZE = 28;
     private native int InitSockClient(String path);
-    private native int SockClientWrite(int fd,SVMPSensorEventMessage event);
-    private native int SockClientClose(int fd); 
-    private int sockfd;
+    private native int SockClientWriteBatch(ByteBuffer records, int count);
+    private native int SockClientClose();
+    private native long SockClientDropped();
+    private native long SockClientConnects();
 
     private Context context;
+    private ServerConfig config;
+    private final Metrics metrics = new Metrics();
+    private final ClockSync clockSync = new ClockSync();
+    private ResponseWriter responseWriter;
+    private BufferPool outboundPool;
+    private ResponseEncoder responseEncoder;
+    // null if compression is disabled
+    private FrameCompressor frameCompressor;
+    private final List<ByteBuffer> encodedBuffers = new ArrayList<ByteBuffer>();
+    private int outboundHighWater;
+    private boolean tcpNoDelay;
+    // guards the session and the encoder; Responses are numbered and encoded while holding it, so that
+    // replayed output and new output can't interleave
+    private final Object outboundLock = new Object();
+    private ClientSession session;
+    private ScheduledFuture<?> sessionExpiry;
+    private ScheduledExecutorService sessionTimer;
+    private int sessionResumeMillis;
+    private int sessionReplayResponses;
+    private int sessionReplayBytes;
     private LocationHandler locationHandler;
     private IntentHandler intentHandler;
     private NotificationHandler notificationHandler;
     private KeyHandler keyHandler;
+    private InputInjector inputInjector;
+    // reusable touch decoding state, only used on the input lane
+    private final TouchEventDecoder touchDecoder = new TouchEventDecoder();
+    private final TouchFrame touchFrame = new TouchFrame();
     private ConfigHandler configHandler;
     private LauncherHandler launcherHandler;
-    private ExecutorService sensorMsgExecutor;
-    private final Object sendMessageLock = new Object();
-    private WebrtcHandler webrtcHandler = null;
+    // sensor events go from the selector thread to the sensor writer's thread through the ring
+    private SensorRing sensorRing;
+    private SensorWriter sensorWriter;
+    // only accepts events on the selector thread
+    private SensorRateLimiter sensorRateLimiter;
+    private SensorHandler sensorHandler;
+    private DiagnosticsServer diagnosticsServer;
+    private RequestDispatcher dispatcher;
+    private volatile WebrtcHandler webrtcHandler = null;
 
     public BaseServer(Context context) throws IOException {
         this.context = context;
-        sockfd = InitSockClient("/dev/socket/svmp_sensors");
-        Log.d(TAG, "InitSockClient returned " + sockfd);
+        this.config = new ServerConfig(context);
+        int sockfd = InitSockClient("/dev/socket/svmp_sensors");
+        Log.d(TAG, "InitSockClient returned " + sockfd + (sockfd < 0 ? ", will retry when sensor events arrive" : ""));
         this.proxyPort = PROXY_PORT;
     }
     
@@ -91,8 +174,15 @@ public abstract class BaseServer implements Constants {
         // start receiving notification intercept messages
         notificationHandler = new NotificationHandler(this);
 
+        // injects touch and key events in order, without waiting for the target app to consume them
+        inputInjector = new InputInjector(metrics, config.getBoolean("CoalesceTouchMoves", true), openTouchDevice(),
+                config.getEnum("StaleMovePolicy", InputInjector.StalePolicy.class, InputInjector.StalePolicy.FOLD),
+                config.getInt("StaleMoveMillis", DEFAULT_STALE_MOVE_MILLIS));
+        inputInjector.start();
+
         // receives KeyEvent request messages from the client and injects them into the system
-        keyHandler = new KeyHandler();
+        keyHandler = new KeyHandler(context, inputInjector, clockSync, config.getBoolean("KeyRepeat", true),
+                config.getInt("TextPasteThreshold", DEFAULT_TEXT_PASTE_THRESHOLD));
 
         // receives Config request messages from the client and injects them into the system
         configHandler = new ConfigHandler(context);
@@ -101,138 +191,392 @@ public abstract class BaseServer implements Constants {
         // receives launcher broadcasts and sends Apps Exit messages to the client
         launcherHandler = new LauncherHandler(this);
 
-        // We create a SingleThreadExecutor because it executes sequentially
+        // sensor events are written by a single thread, from a FIFO ring
         // this guarantees that sensor event messages will be sent in order
-        sensorMsgExecutor = Executors.newSingleThreadExecutor();
+        sensorRing = new SensorRing(config.getInt("SensorRingCapacity", DEFAULT_SENSOR_RING_CAPACITY));
+        sensorRateLimiter = new SensorRateLimiter(config.getInt("SensorMaxRateHz", DEFAULT_SENSOR_MAX_RATE_HZ));
+        sensorRateLimiter.setMaxRates(config.getString("SensorMaxRates", ""));
+        sensorWriter = new SensorWriter(this, sensorRing, new SensorBatchEncoder(clockSync), metrics,
+                config.getBoolean("SensorCoalesce", true),
+                config.getInt("SensorCoalesceMillis", DEFAULT_SENSOR_COALESCE_MILLIS));
+        sensorWriter.start();
+
+        // start receiving sensor subscription messages
+        sensorHandler = new SensorHandler(this, sensorRateLimiter);
+
+        // maps each Request type to its handler and the thread it runs on
+        dispatcher = new RequestDispatcher(metrics);
+        registerHandlers();
+
+        // all outbound Responses are queued and written by a dedicated thread
+        outboundHighWater = config.getInt("OutboundHighWaterBytes", DEFAULT_OUTBOUND_HIGH_WATER);
+        outboundPool = new BufferPool(OUTBOUND_BUFFER_SIZE, OUTBOUND_BUFFERS_POOLED);
+        responseEncoder = new ResponseEncoder(outboundPool, metrics);
+        if (config.getBoolean("Compression", true))
+            frameCompressor = new FrameCompressor(config.getInt("CompressionThresholdBytes", DEFAULT_COMPRESSION_THRESHOLD));
+        sessionResumeMillis = config.getInt("SessionResumeMillis", DEFAULT_SESSION_RESUME_MILLIS);
+        sessionReplayResponses = config.getInt("SessionReplayResponses", DEFAULT_SESSION_REPLAY_RESPONSES);
+        sessionReplayBytes = config.getInt("SessionReplayBytes", DEFAULT_SESSION_REPLAY_BYTES);
+        session = new ClientSession(sessionReplayResponses, sessionReplayBytes);
+        sessionTimer = Executors.newSingleThreadScheduledExecutor();
+        responseWriter = new ResponseWriter(this, config);
+        responseWriter.start();
+
+        // local-only socket that serves snapshots of the server's state
+        String diagnosticsSocket = config.getString("DiagnosticsSocket", DiagnosticsServer.DEFAULT_SOCKET_NAME);
+        if (diagnosticsSocket.length() > 0) {
+            diagnosticsServer = new DiagnosticsServer(this, diagnosticsSocket);
+            diagnosticsServer.start();
+        }
 
-        this.proxySocket = new ServerSocket(proxyPort);
+        selector = Selector.open();
+        proxyChannel = ServerSocketChannel.open();
+        proxyChannel.configureBlocking(false);
+        proxyChannel.socket().setReuseAddress(true);
+        proxyChannel.socket().bind(new InetSocketAddress(proxyPort));
+        proxyChannel.register(selector, SelectionKey.OP_ACCEPT);
+        // we coalesce output ourselves, so by default don't let Nagle's algorithm hold back a flushed batch
+        tcpNoDelay = config.getBoolean("TcpNoDelay", true);
         Log.d(TAG, "Event server listening on proxyPort " + proxyPort);
 
-        clientSocketQueue = new SynchronousQueue<Socket>();
-        new Thread(new SocketAcceptor()).start();
         this.run();
     }
 
-    private class SocketAcceptor implements Runnable {
-        public void run() {
-            InputStream oldClientIn = null;
-            OutputStream oldClientOut = null;
+    // the selector loop; accept, read and write readiness for every channel is handled here
+    protected void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "Error waiting on selector: " + e.getMessage());
+                continue;
+            }
 
-            while (true) {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+
+                if (key.isAcceptable()) {
+                    handleAccept();
+                    continue;
+                }
+
+                ClientConnection client = (ClientConnection) key.attachment();
                 try {
-                    Socket socket = proxySocket.accept();
-                    Log.i(TAG, "New client socket connection received.");
-
-                    // If there's already an existing connection, kill it.
-                    if (proxyIn != null) {
-                        Log.i(TAG, "Previous client session still active, disconnecting it.");
-                        // close the streams to break anything blocked reading them
-                        if (proxyIn != null)  proxyIn.close();
-                        if (proxyOut != null) proxyOut.close();
+                    // until the connection is bound to a session, its first Request goes through the gate
+                    RequestSink sink = client.isEstablished() ? dispatcher : new SessionGate(client);
+                    if (key.isReadable() && !client.read(sink)) {
+                        Log.d(TAG, "Client closed the connection.");
+                        closeConnection(client);
+                        continue;
                     }
+                    if (key.isValid() && key.isWritable())
+                        client.setWriteInterest(!client.flush());
+                } catch (Exception e) {
+                    Log.e(TAG, "Error on socket: " + e.getMessage());
+                    e.printStackTrace();
+                    closeConnection(client);
+                }
+            }
+
+            // the ResponseWriter gave up on this client; don't let it resume with the output it lost
+            ClientConnection stalled = stalledConnection;
+            if (stalled != null) {
+                stalledConnection = null;
+                if (stalled == connection) {
+                    Log.i(TAG, "Client stopped reading its output, disconnecting it.");
+                    closeConnection(stalled, false);
+                }
+            }
 
-                    proxyOut = null;
-                    proxyIn = null;
-                    clientSocketQueue.put(socket);
+            // other threads queue output and wake us up; try to write it right away, and only ask the
+            // selector for write readiness if the socket buffer is full
+            ClientConnection client = connection;
+            if (client != null && !client.isClosed() && client.hasPendingWrites()) {
+                try {
+                    client.setWriteInterest(!client.flush());
                 } catch (IOException e) {
-                    Log.e(TAG, "Problem accepting socket: " + e.getMessage());
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Interrupted while handing off client socket. " + e.getMessage());
+                    Log.e(TAG, "Error on socket: " + e.getMessage());
+                    closeConnection(client);
                 }
             }
         }
     }
 
-    protected void run() {
-        while (true) {
-            try {
-                clientHandler(clientSocketQueue.take());
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Interrupted while waiting for client socket. " + e.getMessage());
+    private void handleAccept() {
+        SocketChannel channel;
+        try {
+            channel = proxyChannel.accept();
+            if (channel == null)
+                return;
+            Log.i(TAG, "New client socket connection received.");
+
+            // If there's already an existing connection, kill it.
+            if (connection != null) {
+                Log.i(TAG, "Previous client session still active, disconnecting it.");
+                closeConnection(connection);
             }
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(tcpNoDelay);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            ClientConnection client = new ClientConnection(channel, key, outboundPool);
+            key.attach(client);
+            connection = client;
+            Log.d(TAG, "Client connection handler starting.");
+        } catch (IOException e) {
+            Log.e(TAG, "Problem accepting socket: " + e.getMessage());
         }
     }
 
-    private void clientHandler(Socket socket) {
-        Log.d(TAG, "Client connection handler starting.");
-        try {
-            proxyIn = socket.getInputStream();
-            proxyOut = socket.getOutputStream();
-            while (socket.isConnected()) {
-                SVMPProtocol.Request msg = SVMPProtocol.Request.parseDelimitedFrom(proxyIn);
-                //logInfo("Received message " + msg.getType().name());
-
-                if( msg == null )
-                    break;
-
-                switch(msg.getType()) {
-                case SCREENINFO:
-                    handleScreenInfo(msg);
-                    break;
-                case TOUCHEVENT:
-                    handleTouch(msg.getTouchList());
-                    break;
-                case SENSOREVENT:
-                    // use the thread pool to handle this
-                    handleSensor(msg.getSensorList());
-                    break;
-                case INTENT:
-                    intentHandler.handleMessage(msg);
-                    break;
-                case LOCATION:
-                    locationHandler.handleMessage(msg);
-                    break;
-                case VIDEO_PARAMS:
-                    initWebRTC(msg);
-                    webrtcHandler.sendMessage(Response.newBuilder()
-                        .setType(ResponseType.VMREADY).build());
-                    break;
-                case WEBRTC:
-                    webrtcHandler.handleMessage(msg);
-                    break;
-                case ROTATION_INFO:
-                    handleRotationInfo(msg);
-                    break;
-                case PING:
-                    handlePing(msg);
-                    break;
-                case TIMEZONE:
-                    handleTimezone(msg);
-                    break;
-                case APPS:
-                    handleApps(msg);
-                    break;
-                case KEYEVENT:
-                    keyHandler.handleKeyEvent(msg.getKey());
-                    break;
-                case CONFIG:
-                    configHandler.handleConfig(msg.getConfig());
-                    break;
-                default:
-                    break;
+    private void closeConnection(ClientConnection client) {
+        closeConnection(client, true);
+    }
+
+    // a session that isn't resumable is ended right away
+    private void closeConnection(ClientConnection client, boolean resumable) {
+        if (client.isClosed())
+            return;
+        synchronized (outboundLock) {
+            client.close();
+        }
+        Log.d(TAG, String.format("Client connection %s; %d bytes allocated for %d messages since start",
+                client.getStats(), responseEncoder.getBytesAllocated(), responseEncoder.getMessages()));
+        if (frameCompressor != null)
+            Log.d(TAG, "Outbound compression: " + frameCompressor.getStats());
+        for (String line : metrics.getSummary())
+            Log.d(TAG, "Metrics: " + line);
+        if (connection == client) {
+            connection = null;
+            // a key that is held down now may never be released
+            keyHandler.cancelRepeat();
+            if (client.isEstablished())
+                detachSession(resumable);
+        }
+        Log.d(TAG, "Client connection handler finished.");
+    }
+
+    // called from the selector thread with the first Request on a connection; binds the connection to a
+    // session, resuming the previous one if that's what the client asked for
+    // returns true if the Request was a session handshake, which is not dispatched
+    private boolean establishSession(ClientConnection client, Request request) throws IOException {
+        JSONObject handshake = ControlChannel.parse(request, ControlChannel.TYPE_SESSION);
+        synchronized (outboundLock) {
+            List<Response> output = new ArrayList<Response>();
+            boolean resumed = handshake != null && canResume(handshake);
+            if (resumed) {
+                if (sessionExpiry != null)
+                    sessionExpiry.cancel(false);
+                output.addAll(session.getSince(handshake.optLong("seq")));
+                Log.i(TAG, String.format("Resuming client session after response %d, replaying %d responses",
+                        handshake.optLong("seq"), output.size()));
+            } else {
+                // anything in the old session was meant for a client that isn't coming back
+                if (session.isUsed())
+                    endSession();
+                session.setAnnounced(handshake != null);
+                session.setSensorSubscriber(handshake != null
+                        && offers(handshake, "sensors", SensorHandler.SUBSCRIBE_MODE));
+            }
+            session.attach();
+
+            if (session.isAnnounced()) {
+                String compression = null;
+                if (frameCompressor != null && offers(handshake, "compression", FrameCompressor.SCHEME)) {
+                    compression = FrameCompressor.SCHEME;
+                    client.setCompressed(true);
+                }
+                Response reply = session.buildSessionResponse(resumed, compression);
+                session.record(reply);
+                output.add(reply);
+                // a resumed session replays the changes it missed instead
+                if (!resumed && session.isSensorSubscriber()) {
+                    for (Response subscribe : sensorHandler.buildSubscriptions()) {
+                        session.record(subscribe);
+                        output.add(subscribe);
+                    }
                 }
+                // the selector loop flushes this once we return
+                encode(client, output);
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error on socket: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            if (webrtcHandler != null) {
-                webrtcHandler.disconnectAndExit();
+            client.setEstablished();
+        }
+        return handshake != null;
+    }
+
+    // true if the handshake lists "value" in its "key" array
+    private static boolean offers(JSONObject handshake, String key, String value) {
+        JSONArray values = handshake.optJSONArray(key);
+        for (int i = 0; values != null && i < values.length(); i++) {
+            if (value.equals(values.optString(i)))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean canResume(JSONObject handshake) {
+        String token = handshake.optString("token", null);
+        WebrtcHandler webrtc = webrtcHandler;
+        return token != null && handshake.has("seq")
+                && session.isAnnounced() && !session.isAttached() && token.equals(session.getToken())
+                && session.canResumeFrom(handshake.optLong("seq"))
+                && (webrtc == null || webrtc.isConnected());
+    }
+
+    // called from the selector thread when a connection that was bound to the session goes away
+    private void detachSession(boolean resumable) {
+        synchronized (outboundLock) {
+            session.detach();
+            if (!resumable || !session.isAnnounced() || sessionResumeMillis <= 0) {
+                endSession();
+                return;
             }
- 
-            try {
-                proxyIn.close();
-                proxyOut.close();
-                socket.close();
-            } catch (Exception e) {
-                // Don't care
-            } finally {
-                proxyIn = null;
-                proxyOut = null;
-                socket = null;
+
+            final ClientSession detached = session;
+            sessionExpiry = sessionTimer.schedule(new Runnable() {
+                public void run() {
+                    synchronized (outboundLock) {
+                        if (session == detached && !detached.isAttached()) {
+                            Log.i(TAG, "Client session was not resumed, ending it");
+                            endSession();
+                        }
+                    }
+                }
+            }, sessionResumeMillis, TimeUnit.MILLISECONDS);
+            Log.d(TAG, "Keeping client session for " + sessionResumeMillis + "ms");
+        }
+    }
+
+    // discards the current session and everything that belongs to it; call while holding the outbound lock
+    private void endSession() {
+        if (sessionExpiry != null) {
+            sessionExpiry.cancel(false);
+            sessionExpiry = null;
+        }
+        session = new ClientSession(sessionReplayResponses, sessionReplayBytes);
+        // anything still queued was meant for the client that went away
+        responseWriter.clear();
+
+        // tear down WebRTC in order with any WEBRTC messages that are still being handled
+        dispatcher.execute(LANE_WEBRTC, new Runnable() {
+            public void run() {
+                if (webrtcHandler != null) {
+                    webrtcHandler.disconnectAndExit();
+                }
+            }
+        });
+    }
+
+    // decides which thread each Request type is handled on; input goes to the input lane, and anything that
+    // makes slow Binder calls goes to a bulk lane, so the selector thread only does quick work
+    private void registerHandlers() {
+        dispatcher.createLane(LANE_INPUT, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+        dispatcher.register(RequestType.SCREENINFO, ExecutionPolicy.INLINE, new RequestHandler() {
+            public void handle(Request msg) throws Exception {
+                handleScreenInfo(msg);
+            }
+        });
+        // TOUCHEVENT and KEYEVENT share a lane so that touch and key input stay in order with each other
+        // touch frames are decoded without the generated parser; anything the decoder can't handle falls back to it
+        dispatcher.register(RequestType.TOUCHEVENT, LANE_INPUT, new FrameHandler() {
+            public boolean handleFrame(byte[] frame, int length) {
+                long start = System.nanoTime();
+                if (!touchDecoder.decode(frame, length)) {
+                    metrics.getTouchDecodeFallbacks().increment();
+                    return false;
+                }
+                metrics.getTouchDecodeNanos().recordSince(start);
+                for (int i = 0; i < touchDecoder.getCount(); i++)
+                    handleTouch(touchDecoder.get(i));
+                return true;
+            }
+        }, new RequestHandler() {
+            public void handle(Request msg) {
+                for (TouchEvent event : msg.getTouchList()) {
+                    touchFrame.set(event);
+                    handleTouch(touchFrame);
+                }
+            }
+        });
+        dispatcher.register(RequestType.KEYEVENT, LANE_INPUT, new RequestHandler() {
+            public void handle(Request msg) {
+                keyHandler.handleKeyEvent(msg.getKey());
+            }
+        });
+        dispatcher.register(RequestType.SENSOREVENT, ExecutionPolicy.INLINE, new RequestHandler() {
+            public void handle(Request msg) {
+                // rate limited here, then queued on the sensor ring for the SensorWriter thread; never blocks
+                handleSensor(msg.getSensorList());
+            }
+        });
+        dispatcher.register(RequestType.PING, ExecutionPolicy.INLINE, new RequestHandler() {
+            public void handle(Request msg) throws Exception {
+                handlePing(msg);
+            }
+        });
+        dispatcher.register(RequestType.ROTATION_INFO, ExecutionPolicy.INLINE, new RequestHandler() {
+            public void handle(Request msg) {
+                handleRotationInfo(msg);
+            }
+        });
+        dispatcher.register(RequestType.INTENT, LANE_INTENT, new RequestHandler() {
+            public void handle(Request msg) {
+                intentHandler.handleMessage(msg);
+            }
+        });
+        dispatcher.register(RequestType.APPS, LANE_APPS, new RequestHandler() {
+            public void handle(Request msg) {
+                handleApps(msg);
+            }
+        });
+        dispatcher.register(RequestType.CONFIG, LANE_CONFIG, new RequestHandler() {
+            public void handle(Request msg) {
+                configHandler.handleConfig(msg.getConfig());
             }
-            Log.d(TAG, "Client connection handler finished.");
+        });
+        dispatcher.register(RequestType.LOCATION, LANE_LOCATION, new RequestHandler() {
+            public void handle(Request msg) {
+                locationHandler.handleMessage(msg);
+            }
+        });
+        // VIDEO_PARAMS creates the WebrtcHandler that WEBRTC messages use, so they must share a lane
+        dispatcher.register(RequestType.VIDEO_PARAMS, LANE_WEBRTC, new RequestHandler() {
+            public void handle(Request msg) {
+                initWebRTC(msg);
+                webrtcHandler.sendMessage(Response.newBuilder()
+                    .setType(ResponseType.VMREADY).build());
+            }
+        });
+        dispatcher.register(RequestType.WEBRTC, LANE_WEBRTC, new RequestHandler() {
+            public void handle(Request msg) {
+                // control messages share the WEBRTC envelope with the signaling messages
+                if (!handleControlMessage(msg))
+                    webrtcHandler.handleMessage(msg);
+            }
+        });
+        dispatcher.register(RequestType.TIMEZONE, ExecutionPolicy.POOLED, new RequestHandler() {
+            public void handle(Request msg) {
+                handleTimezone(msg);
+            }
+        });
+    }
+
+    // returns true if the message was a control message (other than the session handshake)
+    private boolean handleControlMessage(Request msg) {
+        JSONObject viewport = ControlChannel.parse(msg, ControlChannel.TYPE_VIEWPORT);
+        if (viewport != null) {
+            int width = viewport.optInt("width"), height = viewport.optInt("height");
+            if (width >= 0 && height >= 0)
+                handleViewport(width, height);
+            else
+                Log.e(TAG, "Invalid client viewport: " + width + "x" + height);
+            return true;
         }
+        return false;
     }
 
     private void initWebRTC(SVMPProtocol.Request msg) {
@@ -246,15 +590,166 @@ public abstract class BaseServer implements Constants {
         }
     }
  
+    // whether the current session's client streams only the sensors it is subscribed to; may be called from
+    // any thread, e.g. the SensorHandler's broadcast receiver
+    boolean isSensorSubscriber() {
+        synchronized (outboundLock) {
+            return session.isSensorSubscriber();
+        }
+    }
+
+    // may be called from any thread; queues the message for the ResponseWriter and returns immediately
     protected void sendMessage(Response message) {
-        // use synchronized statement to ensure only one message gets sent at a time
-        synchronized(sendMessageLock) {
-            try {
-                message.writeDelimitedTo(proxyOut);
-            } catch (IOException e) {
-                Log.e(TAG, "Error sending message to client: " + e.getMessage());
+        responseWriter.offer(message);
+    }
+
+    // may be called from any thread; the selector thread closes the current connection, and ends its session
+    void disconnectStalledClient() {
+        stalledConnection = connection;
+        selector.wakeup();
+    }
+
+    // called from the ResponseWriter thread with a batch of Responses that will be coalesced into as few
+    // writes as possible; the selector thread does the actual write
+    void writeResponses(List<Response> batch) throws IOException, InterruptedException {
+        ClientConnection client;
+        synchronized (outboundLock) {
+            // a session that can be resumed keeps its output for replay, even while no client is connected
+            if (session.isAnnounced()) {
+                for (Response response : batch)
+                    session.record(response);
+            }
+
+            client = connection;
+            if (client == null || !client.isEstablished()) {
+                if (!session.isAnnounced())
+                    Log.e(TAG, "Error sending message to client: no client is connected");
+                return;
             }
+            encode(client, batch);
+        }
+        selector.wakeup();
+
+        // apply backpressure: let the queues absorb (or drop) output while the client is slow
+        client.awaitDrain(outboundHighWater);
+    }
+
+    // call while holding the outbound lock
+    private void encode(ClientConnection client, List<Response> responses) throws IOException {
+        try {
+            responseEncoder.encode(responses, encodedBuffers, client.isCompressed() ? frameCompressor : null);
+            client.enqueue(encodedBuffers, responses.size());
+        } finally {
+            encodedBuffers.clear();
+        }
+    }
+
+    // passes the first Request on a connection to establishSession(), and everything else to the dispatcher
+    private class SessionGate implements RequestSink {
+        private final ClientConnection client;
+
+        private SessionGate(ClientConnection client) {
+            this.client = client;
+        }
+
+        public boolean isDeferred(RequestType type) {
+            return client.isEstablished() && dispatcher.isDeferred(type);
+        }
+
+        public void dispatch(Request request) throws Exception {
+            if (client.isEstablished() || !establishSession(client, request))
+                dispatcher.dispatch(request);
+        }
+
+        public void dispatchFrame(RequestType type, byte[] buffer, int offset, int length) {
+            dispatcher.dispatchFrame(type, buffer, offset, length);
+        }
+    }
+
+    protected ServerConfig getConfig() {
+        return config;
+    }
+
+    // called from the DiagnosticsServer thread; the server's own queues, lanes and session state
+    void writeDiagnostics(SnapshotWriter out) throws IOException {
+        out.section("outbound");
+        responseWriter.writeTo(out);
+        out.counter("pool.allocatedBytes", outboundPool.getAllocatedBytes());
+        out.counter("encoder.messages", responseEncoder.getMessages());
+        out.counter("encoder.bytesAllocated", responseEncoder.getBytesAllocated());
+        if (frameCompressor != null)
+            out.text("compression", frameCompressor.getStats());
+
+        out.section("dispatch");
+        for (Map.Entry<String, Integer> lane : dispatcher.getLaneDepths().entrySet())
+            out.counter("lane." + lane.getKey() + ".depth", lane.getValue());
+        out.counter("input.depth", inputInjector.getDepth());
+        out.counter("sensor.depth", sensorRing.size());
+        out.counter("sensor.capacity", sensorRing.getCapacity());
+        out.counter("sensor.highWater", sensorRing.getHighWater());
+        out.counter("sensor.overflows", sensorRing.getOverflows());
+        out.counter("sensor.completed", sensorWriter.getWritten());
+        out.counter("sensor.dropped", SockClientDropped());
+        out.counter("sensor.connects", SockClientConnects());
+        out.text("sensor.subscribed", sensorHandler.getSummary());
+
+        out.section("session");
+        String token;
+        long lastSeq;
+        int replayable;
+        boolean announced, attached;
+        synchronized (outboundLock) {
+            token = session.getToken();
+            lastSeq = session.getLastSeq();
+            replayable = session.getReplayableCount();
+            announced = session.isAnnounced();
+            attached = session.isAttached();
+        }
+        // enough of the token to tell sessions apart, not enough to resume one
+        out.text("token", token.substring(0, 8));
+        out.text("state", attached ? "attached" : announced ? "detached" : "unannounced");
+        out.counter("lastSeq", lastSeq);
+        out.counter("replayable", replayable);
+        ClientConnection client = connection;
+        if (client != null) {
+            out.text("client", client.toString());
+            out.text("client.established", String.valueOf(client.isEstablished()));
+            out.text("client.compressed", String.valueOf(client.isCompressed()));
+            out.counter("client.requests", client.getRequests());
+            out.counter("client.readCalls", client.getReadCalls());
+            out.counter("client.messagesQueued", client.getMessagesQueued());
+            out.counter("client.writeCalls", client.getWriteCalls());
+            out.counter("client.bytesWritten", client.getBytesWritten());
+            out.counter("client.pendingBytes", client.getPendingBytes());
+        } else {
+            out.text("client", "none");
         }
+
+        out.section("clock");
+        out.text("offsets", clockSync.toString());
+
+        out.section("webrtc");
+        WebrtcHandler webrtc = webrtcHandler;
+        out.text("ice", webrtc == null ? "none" : String.valueOf(webrtc.getIceConnectionState()));
+    }
+
+    // maps client timestamps onto local clocks
+    public ClockSync getClockSync() {
+        return clockSync;
+    }
+
+    // the uinput device that touch events are written to, or null to inject them through the InputManager
+    protected UinputTouchDevice openTouchDevice() {
+        return null;
+    }
+
+    protected InputInjector getInputInjector() {
+        return inputInjector;
+    }
+
+    // per-type message counters and latency histograms
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     protected Context getContext() {
@@ -262,13 +757,24 @@ public abstract class BaseServer implements Constants {
     }
 
     public abstract void handleScreenInfo(final Request message) throws IOException;
-    public abstract void handleTouch(final List<TouchEvent> event);
+    // called on the input lane; the frame is only valid until the call returns
+    public abstract void handleTouch(final TouchFrame event);
+    public abstract void handleViewport(int width, int height);
 
     private void handleSensor(final List<SensorEvent> eventList) {
         // we can receive a batch of sensor events; process each event individually
-        for (SensorEvent event : eventList)
-            // this SensorEvent was sent from the client, let's pass it on to the Sensor Message Unix socket
-            sensorMsgExecutor.execute(new SensorMessageRunnable(this, sockfd, event));
+        // these SensorEvents were sent from the client, let's pass them on to the Sensor Message Unix socket
+        // the clocks are compared when the events arrive, so time spent waiting for the writer isn't counted as
+        // network delay
+        long arrived = SystemClock.elapsedRealtimeNanos();
+        for (SensorEvent event : eventList) {
+            if (!sensorRateLimiter.accept(event))
+                metrics.getSensorsRateLimited().increment();
+            else if (sensorRing.offer(event, arrived))
+                sensorRateLimiter.onQueued(event);
+        }
+        // the writer sees the whole Request's events at once
+        sensorRing.publish();
     }
 
     public void handleRotationInfo(final Request request) {
@@ -285,6 +791,9 @@ public abstract class BaseServer implements Constants {
         if (request.hasPingRequest() ) {
             // get the ping message that was sent from the client
             Ping ping = request.getPingRequest();
+            // the client's send time is a sample of the offset between its clock and ours
+            if (ping.hasStartDate())
+                clockSync.onPing(ping.getStartDate());
 
             // pack the ping message in a Response wrapper
             Response.Builder builder = Response.newBuilder();
@@ -317,10 +826,10 @@ public abstract class BaseServer implements Constants {
         }
     }
 
-    // called from the SensorMessageRunnable
-    public void sendSensorEvent(int sockfd, SVMPSensorEventMessage message) {
-        // send message
-        SockClientWrite(sockfd, message);
+    // called from the SensorWriter; returns the number of events the socket took, which are always the first ones
+    public int sendSensorBatch(ByteBuffer records, int count) {
+        // send the whole batch with one write
+        return SockClientWriteBatch(records, count);
     }
 
 }
@@ -0,0 +1,226 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State for one non-blocking client channel that is registered with the BaseServer selector.
+ * Inbound bytes are split into delimited Requests by a RequestFrameReader, outbound frames are queued
+ * by any thread and written out by the selector thread when the channel is writable.
+ */
+class ClientConnection {
+    private static final String TAG = ClientConnection.class.getName();
+    // maximum number of buffers handed to a single gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final BufferPool pool;
+    private final RequestFrameReader frameReader = new RequestFrameReader();
+    private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+    private final Object drainLock = new Object();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private volatile boolean closed = false;
+    // set once the connection has been bound to a ClientSession; until then output is held back
+    private volatile boolean established = false;
+    // set if the client agreed to compressed frames in the session handshake
+    private volatile boolean compressed = false;
+
+    // statistics, each is only written by one thread
+    private volatile long readCalls = 0;
+    private volatile long messagesQueued = 0;
+    private volatile long writeCalls = 0;
+    private volatile long bytesWritten = 0;
+
+    ClientConnection(SocketChannel channel, SelectionKey key, BufferPool pool) {
+        this.channel = channel;
+        this.key = key;
+        this.pool = pool;
+    }
+
+    // called from the selector thread when the channel is readable
+    // passes any complete Requests to the sink, returns false when the client has closed the connection
+    boolean read(RequestSink sink) throws Exception {
+        readCalls++;
+        if (frameReader.readFrom(channel) < 0)
+            return false;
+        frameReader.decode(sink);
+        return true;
+    }
+
+    boolean isEstablished() {
+        return established;
+    }
+
+    void setEstablished() {
+        established = true;
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    // called with the pooled buffers holding "messages" encoded Responses, while holding the BaseServer's
+    // outbound lock; the caller is responsible for waking up the selector
+    void enqueue(List<ByteBuffer> buffers, int messages) {
+        if (closed) {
+            // close() has already released the pending output, nobody would release these
+            for (ByteBuffer buffer : buffers)
+                pool.release(buffer);
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            pendingBytes.addAndGet(buffer.remaining());
+            pendingWrites.add(buffer);
+        }
+        messagesQueued += messages;
+    }
+
+    // blocks the calling thread while more than "limit" bytes are waiting to be written
+    void awaitDrain(int limit) throws InterruptedException {
+        synchronized (drainLock) {
+            while (!closed && pendingBytes.get() > limit)
+                drainLock.wait();
+        }
+    }
+
+    int getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    boolean hasPendingWrites() {
+        return !pendingWrites.isEmpty();
+    }
+
+    // called from the selector thread, writes as much pending output as the socket will take using
+    // gathering writes, and returns finished buffers to the pool
+    // returns true if all pending output has been written
+    boolean flush() throws IOException {
+        boolean drained = true;
+        long written = 0;
+        while (true) {
+            int count = 0;
+            for (ByteBuffer buffer : pendingWrites) {
+                gather[count++] = buffer;
+                if (count == MAX_GATHER)
+                    break;
+            }
+            if (count == 0)
+                break;
+
+            written += channel.write(gather, 0, count);
+            writeCalls++;
+
+            ByteBuffer buffer;
+            while ((buffer = pendingWrites.peek()) != null && !buffer.hasRemaining()) {
+                pendingWrites.poll();
+                pool.release(buffer);
+            }
+
+            boolean full = gather[count - 1].hasRemaining();
+            Arrays.fill(gather, 0, count, null);
+            if (full) {
+                // the socket send buffer is full, wait for the selector to tell us it's writable again
+                drained = false;
+                break;
+            }
+        }
+
+        if (written > 0) {
+            bytesWritten += written;
+            pendingBytes.addAndGet((int) -written);
+            synchronized (drainLock) {
+                drainLock.notifyAll();
+            }
+        }
+        return drained;
+    }
+
+    // called from the selector thread to switch write interest on or off
+    void setWriteInterest(boolean enabled) {
+        if (key.isValid())
+            key.interestOps(enabled ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // called from the selector thread while holding the BaseServer's outbound lock, so that enqueue() can't
+    // add output after it has been released
+    void close() {
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing client channel: " + e.getMessage());
+        }
+        ByteBuffer buffer;
+        while ((buffer = pendingWrites.poll()) != null)
+            pool.release(buffer);
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+    }
+
+    long getReadCalls() {
+        return readCalls;
+    }
+
+    long getRequests() {
+        return frameReader.getFrames();
+    }
+
+    long getMessagesQueued() {
+        return messagesQueued;
+    }
+
+    long getWriteCalls() {
+        return writeCalls;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // syscalls per message show how well frames are being batched in each direction
+    String getStats() {
+        return String.format("in: %d requests in %d reads; out: %d messages, %d bytes in %d writes",
+                frameReader.getFrames(), readCalls, messagesQueued, bytesWritten, writeCalls);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.json.JSONObject;
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A client session, which can outlive the connection it started on.
+ *
+ * Every Response sent in the session is implicitly numbered, starting at 1, in the order it is written;
+ * the client counts the Responses it receives. The most recent Responses are kept in a bounded ring, so
+ * when a client reconnects and presents the session token and the last sequence number it received, the
+ * server can replay what it missed instead of the client starting over.
+ *
+ * Handshake, as the first message on a connection (see ControlChannel):
+ *   C->S {"type":"session"}                              start a new session
+ *   C->S {"type":"session","token":T,"seq":N}            resume session T after Response N
+ *   S->C {"type":"session","token":T,"resumed":bool}
+ * The client may add "compression":[schemes] to offer compressed frames, and the reply names the accepted
+ * scheme in "compression" (see FrameCompressor). Likewise "sensors":["subscribe"] asks the server to say which
+ * sensors to stream, and the reply has "sensors":"subscribe" if it will (see SensorHandler).
+ * On resume the replayed Responses are sent before the reply. If the session can't be resumed, the reply
+ * is the first Response of a new session and the client resets its count to 1.
+ * Not thread safe; the BaseServer guards it with its outbound lock.
+ */
+public class ClientSession {
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String token;
+    private final int maxResponses;
+    private final long maxBytes;
+    private final ArrayDeque<Response> ring = new ArrayDeque<Response>();
+    private long ringBytes = 0;
+    private long lastSeq = 0;
+    private boolean announced = false;
+    private boolean attached = false;
+    private boolean used = false;
+    private boolean sensorSubscriber = false;
+
+    public ClientSession(int maxResponses, long maxBytes) {
+        this.maxResponses = maxResponses;
+        this.maxBytes = maxBytes;
+
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            builder.append(String.format("%02x", b));
+        token = builder.toString();
+    }
+
+    // assigns the next sequence number to a Response and keeps it for replay
+    public long record(Response response) {
+        lastSeq++;
+        ring.add(response);
+        ringBytes += response.getSerializedSize();
+        while (ring.size() > maxResponses || (ringBytes > maxBytes && ring.size() > 1))
+            ringBytes -= ring.poll().getSerializedSize();
+        return lastSeq;
+    }
+
+    // true if everything after Response "seq" is still in the ring
+    public boolean canResumeFrom(long seq) {
+        long firstSeq = lastSeq - ring.size() + 1;
+        return seq >= firstSeq - 1 && seq <= lastSeq;
+    }
+
+    // the Responses after "seq", in order
+    public List<Response> getSince(long seq) {
+        int skip = (int) (seq - (lastSeq - ring.size()));
+        List<Response> responses = new ArrayList<Response>(ring.size() - skip);
+        Iterator<Response> iterator = ring.iterator();
+        for (int i = 0; iterator.hasNext(); i++) {
+            Response response = iterator.next();
+            if (i >= skip)
+                responses.add(response);
+        }
+        return responses;
+    }
+
+    // the handshake reply for this session
+    public Response buildSessionResponse(boolean resumed, String compression) {
+        JSONObject json = ControlChannel.newMessage(ControlChannel.TYPE_SESSION);
+        ControlChannel.put(json, "token", token);
+        ControlChannel.put(json, "resumed", resumed);
+        if (compression != null)
+            ControlChannel.put(json, "compression", compression);
+        if (sensorSubscriber)
+            ControlChannel.put(json, "sensors", SensorHandler.SUBSCRIBE_MODE);
+        return ControlChannel.buildResponse(json);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public int getReplayableCount() {
+        return ring.size();
+    }
+
+    // called when a connection is bound to this session, or unbound from it
+    public void attach() {
+        attached = used = true;
+    }
+
+    public void detach() {
+        attached = false;
+    }
+
+    public boolean isAttached() {
+        return attached;
+    }
+
+    // false until a connection has been bound to this session
+    public boolean isUsed() {
+        return used;
+    }
+
+    // whether the client took part in the handshake; only those sessions can be resumed
+    public boolean isAnnounced() {
+        return announced;
+    }
+
+    public void setAnnounced(boolean announced) {
+        this.announced = announced;
+    }
+
+    // whether the client streams only the sensors it is told to subscribe to
+    public boolean isSensorSubscriber() {
+        return sensorSubscriber;
+    }
+
+    public void setSensorSubscriber(boolean sensorSubscriber) {
+        this.sensorSubscriber = sensorSubscriber;
+    }
+}
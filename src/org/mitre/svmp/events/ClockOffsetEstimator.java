@@ -0,0 +1,117 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+/**
+ * Estimates the offset and drift between one of the client's clocks and the matching server clock, from
+ * (client send time, server receive time) pairs, in nanoseconds.
+ *
+ * Each pair measures the clock offset plus that message's network delay. Delay is never negative, so like
+ * NTP's clock filter we keep the smallest offsets: the running estimate drops immediately to any lower
+ * sample, and every window of samples contributes its minimum, which corrects the estimate upwards and
+ * tracks drift between windows. The estimate includes the minimum one-way delay, which maps client times
+ * onto the time the fastest message would have arrived; that keeps them close to "now" for injection.
+ */
+public class ClockOffsetEstimator {
+    // a window closes once it has this many samples and spans at least this long
+    private static final int WINDOW_SAMPLES = 16;
+    private static final long WINDOW_NANOS = 2000000000L;
+    // how much each window's drift measurement moves the drift estimate
+    private static final double DRIFT_GAIN = 0.25;
+    // ignore anything that claims the clocks drift by more than 500ppm, it's noise (or a clock step)
+    private static final double MAX_DRIFT = 500e-6;
+
+    private final String name;
+    private boolean hasEstimate = false;
+    // server minus client time, as of client time "reference"
+    private long offset;
+    private long reference;
+    // change in offset per unit of client time
+    private double drift = 0;
+
+    private long windowMin = Long.MAX_VALUE;
+    private long windowMinClient;
+    private int windowSamples = 0;
+    private long windowStart;
+    private boolean hasPreviousWindow = false;
+    private long previousMin;
+    private long previousMinClient;
+
+    private long samples = 0;
+
+    public ClockOffsetEstimator(String name) {
+        this.name = name;
+    }
+
+    public synchronized void addSample(long clientNanos, long serverNanos) {
+        long sample = serverNanos - clientNanos;
+        samples++;
+        if (!hasEstimate) {
+            hasEstimate = true;
+            offset = sample;
+            reference = clientNanos;
+            windowStart = serverNanos;
+        } else if (sample < offsetAt(clientNanos)) {
+            // a faster message than any we've seen lately
+            offset = sample;
+            reference = clientNanos;
+        }
+
+        if (sample < windowMin) {
+            windowMin = sample;
+            windowMinClient = clientNanos;
+        }
+        if (++windowSamples >= WINDOW_SAMPLES && serverNanos - windowStart >= WINDOW_NANOS)
+            closeWindow(serverNanos);
+    }
+
+    private void closeWindow(long serverNanos) {
+        if (hasPreviousWindow && windowMinClient != previousMinClient) {
+            double measured = (double) (windowMin - previousMin) / (windowMinClient - previousMinClient);
+            if (Math.abs(measured) <= MAX_DRIFT)
+                drift += DRIFT_GAIN * (measured - drift);
+        }
+        offset = windowMin;
+        reference = windowMinClient;
+
+        hasPreviousWindow = true;
+        previousMin = windowMin;
+        previousMinClient = windowMinClient;
+        windowMin = Long.MAX_VALUE;
+        windowSamples = 0;
+        windowStart = serverNanos;
+    }
+
+    private long offsetAt(long clientNanos) {
+        return offset + (long) (drift * (clientNanos - reference));
+    }
+
+    public synchronized boolean hasEstimate() {
+        return hasEstimate;
+    }
+
+    // maps a client time to server time; only meaningful once hasEstimate() is true
+    public synchronized long toServer(long clientNanos) {
+        return clientNanos + offsetAt(clientNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return hasEstimate
+                ? String.format("%s: offset=%dus drift=%.1fppm samples=%d", name, offset / 1000, drift * 1e6, samples)
+                : name + ": no samples";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.os.SystemClock;
+
+/**
+ * Maps the timestamps that the client puts on its input onto this VM's clocks, so that event times are
+ * consistent with each other and with the local clock, and free of network jitter.
+ *
+ * The client stamps messages with three different clocks, and each has its own estimator:
+ *   wall     Ping start dates and location fix times (System.currentTimeMillis() on the client)
+ *   uptime   touch event and down times (SystemClock.uptimeMillis() on the client)
+ *   elapsed  sensor event timestamps (SystemClock.elapsedRealtimeNanos() on the client)
+ * The wall clock is sampled by the PING exchange; the other two are sampled by the input that uses them, at
+ * the time it arrived.
+ * Until an estimator has a sample, times are mapped to "now".
+ */
+public class ClockSync {
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final ClockOffsetEstimator wall = new ClockOffsetEstimator("wall");
+    private final ClockOffsetEstimator uptime = new ClockOffsetEstimator("uptime");
+    private final ClockOffsetEstimator elapsed = new ClockOffsetEstimator("elapsed");
+    // each sensor's timestamps have to stay monotonic; guarded by "this"
+    private final long[] lastSensorTimestamp = new long[SensorRateLimiter.MAX_TYPES];
+
+    // called when a Ping arrives, with the time the client sent it
+    public void onPing(long clientWallMillis) {
+        wall.addSample(clientWallMillis * NANOS_PER_MILLI, System.currentTimeMillis() * NANOS_PER_MILLI);
+    }
+
+    // called when a touch event arrives, with its client event time
+    public void sampleTouch(long clientUptimeMillis) {
+        uptime.addSample(clientUptimeMillis * NANOS_PER_MILLI, SystemClock.uptimeMillis() * NANOS_PER_MILLI);
+    }
+
+    // maps a client touch time (event time, down time or historical time) to local uptime, never in the future
+    public long toLocalUptimeMillis(long clientUptimeMillis) {
+        long now = SystemClock.uptimeMillis();
+        if (!uptime.hasEstimate())
+            return now;
+        return Math.min(uptime.toServer(clientUptimeMillis * NANOS_PER_MILLI) / NANOS_PER_MILLI, now);
+    }
+
+    // samples and maps a sensor event timestamp to local elapsed realtime, given the local elapsed realtime
+    // the event arrived at; the result never goes backwards for a sensor type
+    public synchronized long toLocalSensorTimestamp(int type, long clientElapsedNanos, long arrivedElapsedNanos) {
+        elapsed.addSample(clientElapsedNanos, arrivedElapsedNanos);
+        long timestamp = Math.min(elapsed.toServer(clientElapsedNanos), SystemClock.elapsedRealtimeNanos());
+        if (type < 0 || type >= lastSensorTimestamp.length)
+            return timestamp;
+        if (timestamp <= lastSensorTimestamp[type])
+            timestamp = lastSensorTimestamp[type] + 1;
+        lastSensorTimestamp[type] = timestamp;
+        return timestamp;
+    }
+
+    // maps a client location fix time to local elapsed realtime, for Location.setElapsedRealtimeNanos()
+    public long toLocalElapsedNanos(long clientWallMillis) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (!wall.hasEstimate())
+            return now;
+        // how long ago the fix was taken, by our clock
+        long age = System.currentTimeMillis() * NANOS_PER_MILLI - wall.toServer(clientWallMillis * NANOS_PER_MILLI);
+        return now - Math.max(age, 0);
+    }
+
+    @Override
+    public String toString() {
+        return wall + "; " + uptime + "; " + elapsed;
+    }
+}
@@ -26,6 +26,8 @@ public interface Constants {
     public static final String ROTATION_CHANGED_ACTION = "org.mitre.svmp.action.ROTATION_CHANGED";
     public static final String LOCATION_SUBSCRIBE_ACTION = "org.mitre.svmp.action.LOCATION_SUBSCRIBE";
     public static final String LOCATION_UNSUBSCRIBE_ACTION = "org.mitre.svmp.action.LOCATION_UNSUBSCRIBE";
+    public static final String SENSOR_SUBSCRIBE_ACTION = "org.mitre.svmp.action.SENSOR_SUBSCRIBE";
+    public static final String SENSOR_UNSUBSCRIBE_ACTION = "org.mitre.svmp.action.SENSOR_UNSUBSCRIBE";
     public static final String INTERCEPT_NOTIFICATION_ACTION = "org.mitre.svmp.action.INTERCEPT_NOTIFICATION";
     public static final String LAUNCHER_STARTED_ACTION = "org.mitre.svmp.action.LAUNCHER_STARTED";
     public static final String KEYBOARD_ATTACHED_ACTION = "org.mitre.svmp.action.KEYBOARD_ATTACHED";
@@ -0,0 +1,70 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mitre.svmp.protocol.SVMPProtocol.Request;
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+import org.mitre.svmp.protocol.SVMPProtocol.Response.ResponseType;
+import org.mitre.svmp.protocol.SVMPProtocol.WebRTCMessage;
+
+/**
+ * Server/client control messages that the protobuf schema has no message types for (session setup, etc).
+ * They are JSON objects carried in the WEBRTC message envelope, like the signaling messages, and are told
+ * apart from signaling by their "type" value. Clients that don't use them never receive them.
+ */
+public class ControlChannel {
+    public static final String TYPE_SESSION = "session";
+    // C->S {"type":"viewport","width":W,"height":H}, the size of the client's touch coordinate space, in the
+    // display's natural orientation like SCREENINFO; sent after SCREENINFO, and whenever it changes
+    public static final String TYPE_VIEWPORT = "viewport";
+    // S->C which sensors the client should stream, see SensorHandler
+    public static final String TYPE_SENSOR = "sensor";
+
+    // returns the control message in this Request, or null if it isn't a control message of the given type
+    public static JSONObject parse(Request request, String type) {
+        if (request.getType() != Request.RequestType.WEBRTC || !request.hasWebrtcMsg())
+            return null;
+        try {
+            JSONObject json = new JSONObject(request.getWebrtcMsg().getJson());
+            return type.equals(json.optString("type")) ? json : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public static JSONObject newMessage(String type) {
+        JSONObject json = new JSONObject();
+        put(json, "type", type);
+        return json;
+    }
+
+    public static void put(JSONObject json, String key, Object value) {
+        try {
+            json.put(key, value);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static Response buildResponse(JSONObject json) {
+        return Response.newBuilder()
+                .setType(ResponseType.WEBRTC)
+                .setWebrtcMsg(WebRTCMessage.newBuilder().setJson(json.toString()))
+                .build();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Process;
+import android.util.Log;
+import org.mitre.svmp.events.metrics.BinarySnapshotWriter;
+import org.mitre.svmp.events.metrics.SnapshotWriter;
+import org.mitre.svmp.events.metrics.TextSnapshotWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Serves snapshots of the server's metrics, queues, session, threads and config on a local (abstract
+ * namespace) Unix socket, so a sluggish VM can be looked at without going through the proxy or logcat.
+ * A client connects, sends "text" or "binary" followed by a newline, and reads the snapshot until EOF, e.g.
+ *   adb shell socat - ABSTRACT-CONNECT:svmp_events_diag <<< text
+ * Only root, shell, system and the event server's own uid are allowed to connect. Clients are served one at
+ * a time, and a client that doesn't send its command, or stops reading, within IO_TIMEOUT_MILLIS is dropped
+ * so it can't hold up the rest.
+ */
+public class DiagnosticsServer extends Thread {
+    private static final String TAG = DiagnosticsServer.class.getName();
+
+    public static final String DEFAULT_SOCKET_NAME = "svmp_events_diag";
+
+    private static final int ROOT_UID = 0;
+    private static final int SHELL_UID = 2000;
+    private static final int MAX_COMMAND_LENGTH = 64;
+    private static final int IO_TIMEOUT_MILLIS = 2000;
+    // how many frames of each thread's stack to show
+    private static final int STACK_DEPTH = 4;
+
+    private final BaseServer baseServer;
+    private final String socketName;
+
+    public DiagnosticsServer(BaseServer baseServer, String socketName) {
+        super("DiagnosticsServer");
+        this.baseServer = baseServer;
+        this.socketName = socketName;
+        setDaemon(true);
+    }
+
+    public void run() {
+        LocalServerSocket serverSocket;
+        try {
+            serverSocket = new LocalServerSocket(socketName);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening diagnostics socket: " + e.getMessage());
+            return;
+        }
+        Log.d(TAG, "Diagnostics listening on @" + socketName);
+
+        while (!isInterrupted()) {
+            LocalSocket socket = null;
+            try {
+                socket = serverSocket.accept();
+                Credentials credentials = socket.getPeerCredentials();
+                int uid = credentials.getUid();
+                if (uid != ROOT_UID && uid != SHELL_UID && uid != Process.SYSTEM_UID && uid != Process.myUid()) {
+                    Log.w(TAG, "Rejected diagnostics connection from uid " + uid);
+                    continue;
+                }
+
+                // applies to reading the command and to writing the snapshot
+                socket.setSoTimeout(IO_TIMEOUT_MILLIS);
+                String command = readCommand(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                writeSnapshot("binary".equals(command) ? new BinarySnapshotWriter(out) : new TextSnapshotWriter(out));
+            } catch (IOException e) {
+                Log.e(TAG, "Error serving diagnostics: " + e.getMessage());
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing diagnostics socket: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private String readCommand(InputStream in) throws IOException {
+        StringBuilder command = new StringBuilder();
+        int b;
+        while (command.length() < MAX_COMMAND_LENGTH && (b = in.read()) >= 0 && b != '\n')
+            command.append((char) b);
+        return command.toString().trim();
+    }
+
+    private void writeSnapshot(SnapshotWriter out) throws IOException {
+        baseServer.getMetrics().writeTo(out);
+        baseServer.writeDiagnostics(out);
+
+        out.section("threads");
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            Thread thread = entry.getKey();
+            StringBuilder summary = new StringBuilder(thread.getState().toString());
+            StackTraceElement[] stack = entry.getValue();
+            for (int i = 0; i < stack.length && i < STACK_DEPTH; i++)
+                summary.append(i == 0 ? " at " : " < ").append(stack[i]);
+            out.text(thread.getName(), summary.toString());
+        }
+
+        out.section("config");
+        Properties properties = baseServer.getConfig().getProperties();
+        for (String key : new TreeSet<String>(properties.stringPropertyNames()))
+            out.text(key, properties.getProperty(key));
+
+        out.finish();
+    }
+}
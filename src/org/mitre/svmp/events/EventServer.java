@@ -21,31 +21,57 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.util.Log;
+import android.view.IRotationWatcher;
 import android.view.IWindowManager;
 import android.view.MotionEvent;
 import android.view.WindowManagerImpl;
 import android.hardware.display.DisplayManagerGlobal;
-import android.hardware.input.InputManager;
 import android.view.Display;
 import android.view.InputDevice;
 import android.view.Surface;
 import android.graphics.Point;
 
 import java.io.IOException;
-import java.util.List;
 
 import org.mitre.svmp.protocol.*;
 import org.mitre.svmp.protocol.SVMPProtocol.Response.ResponseType;
-import org.mitre.svmp.protocol.SVMPProtocol.TouchEvent;
 
 public class EventServer extends BaseServer {
     private static final String TAG = EventServer.class.getName();
+    private static final String UINPUT_DEVICE_NAME = "svmp-touchscreen";
 
     private IWindowManager windowManager;
     private Display display;
-    private long lastDownTime, lastDownTimeClient = -1;
+    private long lastDownTime;
+    // the size of the display in its natural orientation, for SCREENINFO, touch transforms and the uinput device
     private final Point screenSize = new Point();
-    private double xScaleFactor, yScaleFactor;
+    // null unless touch goes through uinput
+    private UinputTouchDevice touchDevice;
+
+    // the display rotation, kept up to date by the rotation watcher so that translating touch coordinates
+    // doesn't cost a Binder call; ROTATION_UNKNOWN means it has to be read from the WindowManager
+    private static final int ROTATION_UNKNOWN = -1;
+    private volatile int rotation = ROTATION_UNKNOWN;
+    private boolean watchingRotation = false;
+    private final IRotationWatcher rotationWatcher = new IRotationWatcher.Stub() {
+        public void onRotationChanged(int newRotation) {
+            rotation = newRotation;
+        }
+    };
+
+    // the size of the client's touch coordinate space, width in the high 32 bits and height in the low; 0 means
+    // the client sends screen coordinates
+    private volatile long viewport = 0;
+    // only used from the input lane
+    private TouchTransform transform;
+
+    // pointer arrays are reused from one touch event to the next, indexed by pointer count, so that a steady
+    // drag doesn't produce garbage; MotionEvent copies them, so they're free again as soon as it is built
+    // only used from the input lane
+    private static final int MAX_POOLED_POINTERS = 16;
+    private final MotionEvent.PointerCoords[][] coordsPool = new MotionEvent.PointerCoords[MAX_POOLED_POINTERS + 1][];
+    private final MotionEvent.PointerProperties[][] propsPool =
+            new MotionEvent.PointerProperties[MAX_POOLED_POINTERS + 1][];
 
     public EventServer(Context context) throws IOException {
         super(context);
@@ -59,11 +85,30 @@ public class EventServer extends BaseServer {
         //   Utility.logError("Error getting display size: " + re.getMessage());
         // }
 
+        try {
+            rotation = windowManager.watchRotation(rotationWatcher);
+            watchingRotation = true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error watching display rotation, it will be read for every touch event: " + e.getMessage());
+        }
+
+        // the real size is in the current orientation; if the VM started sideways, swap it back
+        int startRotation = getRotation();
+        if (startRotation == Surface.ROTATION_90 || startRotation == Surface.ROTATION_270)
+            screenSize.set(screenSize.y, screenSize.x);
         Log.d(TAG, "Display Size: " + screenSize.x + " , " + screenSize.y);
 
+        if (getConfig().getBoolean("UinputTouch", false))
+            touchDevice = UinputTouchDevice.open(UINPUT_DEVICE_NAME, screenSize.x, screenSize.y);
+
         start();
     }
 
+    @Override
+    protected UinputTouchDevice openTouchDevice() {
+        return touchDevice;
+    }
+
     @Override
     public void handleScreenInfo(final SVMPProtocol.Request message) throws IOException {
         SVMPProtocol.Response.Builder msg = SVMPProtocol.Response.newBuilder();
@@ -77,68 +122,92 @@ public class EventServer extends BaseServer {
         Log.d(TAG, "Sent screen info response: " + screenSize.x + "," + screenSize.y);
     }
 
-    private MotionEvent.PointerCoords translateCoords(float X, float Y) {
-        MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
-
-        // Translate the client coordinates according to the screen orientation
-        // Origin is the top left of the physical phone's screen in the natural upright position
-        int rotation = Surface.ROTATION_0;
-        try {
-            rotation = windowManager.getRotation();
-            switch (rotation) {
-                case Surface.ROTATION_0:
-                    coords.x = X;
-                    coords.y = Y;
-                    break;
-                case Surface.ROTATION_180:
-                    // screen turned left 180
-                    // client origin is now in bottom right
-                    // invert both
-                    coords.x = screenSize.x - X;
-                    coords.y = screenSize.y - Y;
-                    break;
-                case Surface.ROTATION_90:
-                    // screen turned left 90
-                    // client origin is now in bottom left
-                    // switch, invert client x
-                    coords.x = Y;
-                    coords.y = screenSize.x - X;
-                    break;
-                case Surface.ROTATION_270:
-                    // screen turned right 90
-                    // client origin is now in top right
-                    // switch, invert client y
-                    coords.x = screenSize.y - Y;
-                    coords.y = X;
-                    break;
+    // the current display rotation, only makes a Binder call if the cached value isn't valid
+    private int getRotation() {
+        int current = rotation;
+        if (current == ROTATION_UNKNOWN) {
+            try {
+                current = windowManager.getRotation();
+                if (watchingRotation)
+                    rotation = current;
+            } catch (RemoteException re) {
+                Log.e(TAG, "Cannot translate input coordinates. Error getting display rotation: " + re.getMessage());
+                current = Surface.ROTATION_0;
             }
-        } catch (RemoteException re) {
-            Log.e(TAG, "Cannot translate input coordinates. Error getting display size: " + re.getMessage());
-            coords.x = X;
-            coords.y = Y;
-        } finally {
-            coords.pressure = 1f;
-            coords.size = 5f;
+        }
+        return current;
+    }
+
+    @Override
+    public void handleRotationInfo(final SVMPProtocol.Request request) {
+        super.handleRotationInfo(request);
+        // the rotation is about to change; in case the watcher misses it, re-read it on the next touch event
+        rotation = ROTATION_UNKNOWN;
+    }
+
+    private MotionEvent.PointerCoords[] obtainCoords(int count) {
+        MotionEvent.PointerCoords[] coords = count <= MAX_POOLED_POINTERS ? coordsPool[count] : null;
+        if (coords == null) {
+            coords = new MotionEvent.PointerCoords[count];
+            for (int i = 0; i < count; i++)
+                coords[i] = new MotionEvent.PointerCoords();
+            if (count <= MAX_POOLED_POINTERS)
+                coordsPool[count] = coords;
         }
         return coords;
     }
 
+    private MotionEvent.PointerProperties[] obtainProps(int count) {
+        MotionEvent.PointerProperties[] props = count <= MAX_POOLED_POINTERS ? propsPool[count] : null;
+        if (props == null) {
+            props = new MotionEvent.PointerProperties[count];
+            for (int i = 0; i < count; i++)
+                props[i] = new MotionEvent.PointerProperties();
+            if (count <= MAX_POOLED_POINTERS)
+                propsPool[count] = props;
+        }
+        return props;
+    }
+
+    private void setProps(MotionEvent.PointerProperties props, int id) {
+        props.clear();
+        props.id = id;
+        props.toolType = MotionEvent.TOOL_TYPE_FINGER;
+    }
+
+    // the transform for the current rotation and client viewport, rebuilt only when one of them changes
+    private TouchTransform getTransform() {
+        int rotation = getRotation();
+        // the device maps touch back to the natural orientation; events queued before a rotation may be
+        // mapped with the new one, the same brief glitch a real touchscreen has
+        if (touchDevice != null)
+            touchDevice.setRotation(rotation);
+        long viewport = this.viewport;
+        int viewportWidth = (int) (viewport >>> 32), viewportHeight = (int) viewport;
+        TouchTransform current = transform;
+        if (current == null || !current.matches(rotation, viewportWidth, viewportHeight)) {
+            current = new TouchTransform(rotation, screenSize.x, screenSize.y, viewportWidth, viewportHeight);
+            transform = current;
+        }
+        return current;
+    }
+
     @Override
-    public void handleTouch(final List<TouchEvent> eventList) {
-        // we can receive a batch of touch events; process each event individually
-        for (TouchEvent event : eventList)
-            handleTouch(event);
+    public void handleViewport(int width, int height) {
+        Log.d(TAG, "Client viewport: " + width + "x" + height);
+        viewport = ((long) width << 32) | (height & 0xffffffffL);
     }
 
-    // overload to handle individual touch events
-    public void handleTouch(final SVMPProtocol.TouchEvent event) {
+    // called for each touch event in a batch
+    @Override
+    public void handleTouch(final TouchFrame event) {
         if (event.hasEventTime())
             handleTouchNew(event);
         else
             handleTouchOld(event);
     }
 
-    private final void handleTouchOld(final SVMPProtocol.TouchEvent event) {
+    private final void handleTouchOld(final TouchFrame event) {
         // Maintain Downtime
         final long now = SystemClock.uptimeMillis();
         if (event.getAction()== MotionEvent.ACTION_DOWN ||
@@ -149,62 +218,65 @@ public class EventServer extends BaseServer {
         }
 
         // Create the MotionEvent to inject
-        final int pointerSize = event.getItemsCount();
-        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerSize];
-        MotionEvent.PointerProperties[] props = new MotionEvent.PointerProperties[pointerSize];
+        final long buildStart = System.nanoTime();
+        final TouchTransform transform = getTransform();
+        final int pointerSize = event.getPointerCount();
+        MotionEvent.PointerCoords[] coords = obtainCoords(pointerSize);
+        MotionEvent.PointerProperties[] props = obtainProps(pointerSize);
 
         for (int i = 0; i < pointerSize; i++) {
-            props[i] = new MotionEvent.PointerProperties();
-            props[i].id = event.getItems(i).getId();
-            props[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
-            coords[i] = translateCoords(event.getItems(i).getX(), event.getItems(i).getY());
+            setProps(props[i], event.getId(i));
+            transform.apply(event.getX(i), event.getY(i), coords[i]);
         }
 
         MotionEvent me = MotionEvent.obtain(lastDownTime, now, event.getAction(), pointerSize, props, coords,
                 0, 0, 1, 1, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+        getMetrics().getTouchBuildNanos().recordSince(buildStart);
 
         injectTouch(me);
     }
 
     private long lastTouch = 0;
-    private void handleTouchNew(final SVMPProtocol.TouchEvent event) {
+    private void handleTouchNew(final TouchFrame event) {
         // Maintain Downtime
         final long now = SystemClock.uptimeMillis();
         long eventTime = event.getEventTime();
+        long leeway = 0;
+        // every touch event is a sample of the offset between the client's uptime clock and ours
+        getClockSync().sampleTouch(eventTime);
 
         if ((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN) {
-            Log.d(TAG, "ACTION_DOWN( " + event.getItems(0).getId() + ") at " + now + " / " + eventTime);
-            lastDownTime = now;
-            lastDownTimeClient = event.getDownTime();
+            Log.d(TAG, "ACTION_DOWN( " + event.getId(0) + ") at " + now + " / " + eventTime);
+            lastDownTime = getClockSync().toLocalUptimeMillis(event.getDownTime());
         }
 
         if ((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_UP) {
-            Log.d(TAG, "ACTION_UP( " + event.getItems(0).getId() + ") at " + now + " / " + eventTime);
+            Log.d(TAG, "ACTION_UP( " + event.getId(0) + ") at " + now + " / " + eventTime);
             // give UP's a little bit of leeway in the timing 
             // makes them less likely to get dropped by the system and reduces touch input weirdness
-            eventTime += 75;
+            leeway = 75;
         }
 
         if ((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_POINTER_UP) {
             int index = (event.getAction() & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
-            Log.d(TAG, "ACTION_POINTER_UP(" + event.getItems(index).getId() + ") at " + now + " / " + eventTime);
+            Log.d(TAG, "ACTION_POINTER_UP(" + event.getId(index) + ") at " + now + " / " + eventTime);
         }
 
         if ((event.getAction() & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_POINTER_DOWN) {
             int index = (event.getAction() & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
-            Log.d(TAG, "ACTION_POINTER_DOWN(" + event.getItems(index).getId() + ") at " + now + " / " + eventTime);
+            Log.d(TAG, "ACTION_POINTER_DOWN(" + event.getId(index) + ") at " + now + " / " + eventTime);
         }
 
         // translate the pointer coordinates based on screen orientation
-        final int pointerSize = event.getItemsCount();
-        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerSize];
-        MotionEvent.PointerProperties[] props = new MotionEvent.PointerProperties[pointerSize];
+        final long buildStart = System.nanoTime();
+        final TouchTransform transform = getTransform();
+        final int pointerSize = event.getPointerCount();
+        MotionEvent.PointerCoords[] coords = obtainCoords(pointerSize);
+        MotionEvent.PointerProperties[] props = obtainProps(pointerSize);
 
         for (int i = 0; i < pointerSize; i++) {
-            props[i] = new MotionEvent.PointerProperties();
-            props[i].id = event.getItems(i).getId();
-            props[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
-            coords[i] = translateCoords(event.getItems(i).getX(), event.getItems(i).getY());
+            setProps(props[i], event.getId(i));
+            transform.apply(event.getX(i), event.getY(i), coords[i]);
         }
 
         // use client edgeFlags if present
@@ -212,7 +284,7 @@ public class EventServer extends BaseServer {
 
         MotionEvent me = MotionEvent.obtain(
                 lastDownTime,                           // downTime
-                offsetEventTime(eventTime),             // eventTime
+                offsetEventTime(eventTime) + leeway,    // eventTime
                 event.getAction(),                      // action
                 pointerSize,                            // pointerCount
                 props,                                  // pointerProperties
@@ -229,38 +301,30 @@ public class EventServer extends BaseServer {
         // handle any batched historical pointer movements
         int historicalSize = event.getHistoricalCount();
         for (int i = 0; i < historicalSize; i++) {
-            SVMPProtocol.TouchEvent.HistoricalEvent h = event.getHistorical(i);
-
             // translate the coordinate space to local screen orientation
-            int coordsSize = event.getHistorical(i).getCoordsCount();
-            coords = new MotionEvent.PointerCoords[coordsSize];
+            int coordsSize = event.getHistoricalCoordsCount(i);
+            coords = obtainCoords(coordsSize);
             for (int j = 0; j < coordsSize; j++) {
-                coords[j] = translateCoords(h.getCoords(j).getX(), h.getCoords(j).getY());
+                transform.apply(event.getHistoricalX(i, j), event.getHistoricalY(i, j), coords[j]);
             }
 
-            me.addBatch(offsetEventTime(h.getEventTime()), coords, 0);
+            me.addBatch(offsetEventTime(event.getHistoricalEventTime(i)), coords, 0);
         }
 
         me.setAction(event.getAction());
+        getMetrics().getTouchBuildNanos().recordSince(buildStart);
 
         injectTouch(me);
     }
 
+    // maps a client event time onto our clock; never earlier than the gesture's down time
     private long offsetEventTime(long clientTime) {
-        return clientTime - lastDownTimeClient + lastDownTime;
+        return Math.max(getClockSync().toLocalUptimeMillis(clientTime), lastDownTime);
     }
 
+    // the injector owns the event from here on, and recycles it once it has been injected
     private void injectTouch(MotionEvent me) {
-        try {
-            //Log.d(TAG, "injecting touch event");
-            //InputManager.getInstance().injectInputEvent(me,InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT);
-            if (!InputManager.getInstance().injectInputEvent(me,InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH))
-                Log.e(TAG, "Failed injecting MotionEvent " + me.toString());
-        } catch (Exception e) {
-            Log.e(TAG, "Error injecting MotionEvent: " + e.getMessage());
-        } finally {
-            me.recycle();
-        }
+        getInputInjector().inject(me);
     }
 
 }
@@ -0,0 +1,133 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+import org.mitre.svmp.protocol.SVMPProtocol.Response.ResponseType;
+
+import java.io.ByteArrayOutputStream;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses large outbound Responses for clients that asked for it in the session handshake.
+ *
+ * A compressed frame has the usual varint length prefix, followed by:
+ *   0x00                            marker; a protobuf tag can't be 0, so no plain Response starts with it
+ *   varint                          the size of the uncompressed Response
+ *   raw deflate data                the Response, deflated with DICTIONARY as the preset dictionary
+ * Only the types that carry bulky payloads (app lists, notification icons) are compressed, only above a
+ * size threshold, and only if the result is actually smaller.
+ * Not thread safe; the BaseServer uses it while holding its outbound lock.
+ */
+class FrameCompressor {
+    // the name the client offers, and the server accepts, in the session handshake
+    static final String SCHEME = "deflate-dict1";
+    static final byte COMPRESSED_MARKER = 0;
+
+    private static final Set<ResponseType> COMPRESSED_TYPES = EnumSet.of(ResponseType.APPS, ResponseType.NOTIFICATION);
+    // output buffers larger than this are not kept between messages
+    private static final int MAX_KEPT_OUTPUT = 256 * 1024;
+
+    // strings that are common in app lists and notifications; the client must use the same bytes
+    // zlib matches the end of the dictionary most cheaply, so the most common strings go last
+    static final byte[] DICTIONARY;
+    static {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String[] strings = {
+                "android.intent.category.LAUNCHER", "android.intent.action.MAIN", "com.google.android.apps.",
+                "com.google.android.", "com.android.", "org.mitre.svmp.", "Settings", "Camera", "Browser",
+                "Gallery", "Contacts", "Messaging", "Calendar", "Clock", "Email", "Phone",
+                "\u0000\u0000\u0000\rIHDR", "\u0008\u0006\u0000\u0000\u0000", "sRGB\u0000\u00ae\u00ce\u001c\u00e9",
+                "pHYs", "tEXtSoftware", "IEND\u00aeB`\u0082", "\u0000\u0000\u0000\u0000IEND",
+                "\u0089PNG\r\n\u001a\n", "IDATx\u009c", "IDATx\u00da"
+        };
+        for (String string : strings) {
+            // the PNG strings are binary, each char is one byte
+            for (int i = 0; i < string.length(); i++)
+                out.write(string.charAt(i));
+        }
+        DICTIONARY = out.toByteArray();
+    }
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final int threshold;
+    private byte[] output = new byte[0];
+
+    // only written while holding the BaseServer outbound lock
+    private volatile long messages = 0;
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+
+    FrameCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // whether a Response of this size is worth trying to compress
+    boolean accepts(Response response, int size) {
+        return size >= threshold && COMPRESSED_TYPES.contains(response.getType());
+    }
+
+    // compresses the serialized Response in input[0, length) into getOutput(); returns the size of the
+    // compressed payload, or -1 if it wouldn't be smaller than the original
+    int compress(byte[] input, int length) {
+        // room for the marker and the size prefix
+        byte[] out = getOutput(length + 6);
+        int position = 0;
+        out[position++] = COMPRESSED_MARKER;
+        for (int value = length; ; value >>>= 7) {
+            if ((value & ~0x7f) == 0) {
+                out[position++] = (byte) value;
+                break;
+            }
+            out[position++] = (byte) ((value & 0x7f) | 0x80);
+        }
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        // never let the output grow past the size of the original, there's no point
+        while (!deflater.finished()) {
+            if (position >= length)
+                return -1;
+            position += deflater.deflate(out, position, length - position);
+        }
+        if (position >= length)
+            return -1;
+
+        messages++;
+        bytesIn += length;
+        bytesOut += position;
+        return position;
+    }
+
+    byte[] getOutput() {
+        return output;
+    }
+
+    private byte[] getOutput(int size) {
+        // don't hold on to a huge array after an unusually large message
+        if (output.length < size || output.length > Math.max(size, MAX_KEPT_OUTPUT))
+            output = new byte[size];
+        return output;
+    }
+
+    String getStats() {
+        return String.format("%d messages compressed from %d to %d bytes", messages, bytesIn, bytesOut);
+    }
+}
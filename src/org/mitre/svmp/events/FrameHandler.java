@@ -0,0 +1,26 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+/**
+ * Handles the undecoded frame of a deferred Request type without parsing it into a Request; registered with
+ * the RequestDispatcher alongside the RequestHandler for the type.
+ */
+public interface FrameHandler {
+    // the frame is the first "length" bytes of "frame", which is reused once this returns
+    // returns false if the frame wasn't handled, it's then parsed and passed to the RequestHandler
+    public boolean handleFrame(byte[] frame, int length) throws Exception;
+}
@@ -0,0 +1,301 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.hardware.input.InputManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.InputDevice;
+import android.view.InputEvent;
+import android.view.MotionEvent;
+import org.mitre.svmp.events.metrics.Metrics;
+
+/**
+ * Dedicated high priority thread that injects touch and key events, strictly in the order they were queued.
+ * Events are injected asynchronously: InputManager hands them to the input dispatcher and returns without
+ * waiting for the target app to consume them, so an app with a busy UI thread can't hold up the events
+ * behind it. Failures and latencies are recorded in the Metrics rather than reported to the caller.
+ * Queued MotionEvents belong to the injector, which recycles them after injecting them.
+ *
+ * When the injector falls behind, a MOVE that is queued right behind another MOVE of the same gesture and
+ * pointer set is folded into it as historical samples (the way client-batched history is), so the queue
+ * stays short instead of growing without limit. DOWN, UP and POINTER_* events are never merged or reordered.
+ *
+ * A MOVE's age is its event time, which the ClockSync has already mapped onto our uptime clock, subtracted
+ * from the current time; so it counts network delay beyond the usual, as well as time spent in the queue.
+ * After a stall, MOVEs older than the latency budget are handled by the StalePolicy, so the pointer jumps
+ * to where the finger is now instead of replaying the whole backlog. DOWN, UP, POINTER_* and key events are
+ * always delivered.
+ *
+ * If a UinputTouchDevice is given, touchscreen events are written to it instead of going through the
+ * InputManager; any event it can't take falls back to the InputManager.
+ *
+ * Actions that have to happen in order with the input (like setting the clipboard for a paste) can be queued
+ * with runInOrder(); they run on the injector's thread, and can inject with injectNow().
+ */
+public class InputInjector extends Thread {
+    private static final String TAG = InputInjector.class.getName();
+
+    public enum StalePolicy {
+        // inject stale MOVEs like any other
+        DELIVER,
+        // discard a stale MOVE; the next MOVE, or the UP, brings the pointer up to date
+        DROP,
+        // merge the MOVEs queued behind a stale MOVE into it, and inject them as one event
+        FOLD
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_POINTERS = 16;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final InputManager inputManager = InputManager.getInstance();
+    private final Metrics metrics;
+    private final boolean coalesceMoves;
+    // null unless touch goes through uinput
+    private final UinputTouchDevice touchDevice;
+    private final StalePolicy stalePolicy;
+    private final long staleMillis;
+    // scratch for copying samples from one MotionEvent into another, only used while holding the lock
+    private final MotionEvent.PointerCoords[] sampleCoords = new MotionEvent.PointerCoords[MAX_POINTERS];
+    private final Object lock = new Object();
+    // a growable ring of events and the times they were queued, so queueing doesn't allocate
+    private InputEvent[] events = new InputEvent[INITIAL_CAPACITY];
+    // a queued action takes the place of an event, which is null in its slot
+    private Runnable[] actions = new Runnable[INITIAL_CAPACITY];
+    private long[] queuedNanos = new long[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private volatile long failures = 0;
+
+    public InputInjector(Metrics metrics, boolean coalesceMoves, UinputTouchDevice touchDevice,
+                         StalePolicy stalePolicy, long staleMillis) {
+        super("InputInjector");
+        this.metrics = metrics;
+        this.coalesceMoves = coalesceMoves;
+        this.touchDevice = touchDevice;
+        this.stalePolicy = stalePolicy;
+        this.staleMillis = staleMillis;
+        for (int i = 0; i < MAX_POINTERS; i++)
+            sampleCoords[i] = new MotionEvent.PointerCoords();
+        setDaemon(true);
+    }
+
+    // may be called from any thread, returns as soon as the event is queued
+    public void inject(InputEvent event) {
+        synchronized (lock) {
+            // anything still in the queue is waiting on the injector, so it's safe to add to it
+            if (coalesceMoves && size > 0 && coalesce(events[(head + size - 1) % events.length], event)) {
+                metrics.getCoalescedMoves().increment();
+                return;
+            }
+            enqueue(event, null);
+        }
+    }
+
+    // may be called from any thread; runs the action on the injector's thread, after the events queued before it
+    public void runInOrder(Runnable action) {
+        synchronized (lock) {
+            enqueue(null, action);
+        }
+    }
+
+    // must hold the lock
+    private void enqueue(InputEvent event, Runnable action) {
+        if (size == events.length)
+            grow();
+        int tail = (head + size) % events.length;
+        events[tail] = event;
+        actions[tail] = action;
+        queuedNanos[tail] = System.nanoTime();
+        size++;
+        lock.notify();
+    }
+
+    // injects a key event right away, and if "wait" is true, waits for the focused app to finish handling it;
+    // called from an action queued with runInOrder(), or from another thread once the events it has to follow
+    // have been injected
+    public boolean injectNow(InputEvent event, boolean wait) {
+        try {
+            if (inputManager.injectInputEvent(event, wait ? InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH
+                    : InputManager.INJECT_INPUT_EVENT_MODE_ASYNC))
+                return true;
+            recordFailure(event, null);
+        } catch (Exception e) {
+            recordFailure(event, e);
+        }
+        return false;
+    }
+
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        while (!isInterrupted()) {
+            InputEvent event;
+            Runnable action;
+            long queued;
+            boolean drop = false;
+            try {
+                synchronized (lock) {
+                    while (size == 0)
+                        lock.wait();
+                    event = events[head];
+                    action = actions[head];
+                    queued = queuedNanos[head];
+                    removeHead();
+                    if (stalePolicy != StalePolicy.DELIVER && isStaleMove(event)) {
+                        if (stalePolicy == StalePolicy.DROP) {
+                            drop = true;
+                        } else {
+                            // whatever can be merged has already waited too long, so take it now
+                            while (size > 0 && coalesce(event, events[head])) {
+                                removeHead();
+                                metrics.getStaleMovesFolded().increment();
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (action != null) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error running queued action: " + e.getMessage());
+                }
+                continue;
+            }
+
+            if (drop) {
+                metrics.getStaleMovesDropped().increment();
+                ((MotionEvent) event).recycle();
+                continue;
+            }
+
+            long start = System.nanoTime();
+            metrics.getInputQueueNanos().record(start - queued);
+            if (event instanceof MotionEvent)
+                metrics.getInputAgeNanos().record(getAgeMillis((MotionEvent) event) * NANOS_PER_MILLI);
+            try {
+                if (!writeToDevice(event)
+                        && !inputManager.injectInputEvent(event, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC))
+                    recordFailure(event, null);
+            } catch (Exception e) {
+                recordFailure(event, e);
+            } finally {
+                metrics.getInjectNanos().recordSince(start);
+                if (event instanceof MotionEvent)
+                    ((MotionEvent) event).recycle();
+            }
+        }
+        if (touchDevice != null)
+            touchDevice.close();
+        Log.d(TAG, "InputInjector stopped");
+    }
+
+    // writes touchscreen events to the uinput device, if there is one; returns false if the event wasn't written
+    private boolean writeToDevice(InputEvent event) {
+        return touchDevice != null && event instanceof MotionEvent
+                && ((MotionEvent) event).getSource() == InputDevice.SOURCE_TOUCHSCREEN
+                && touchDevice.write((MotionEvent) event);
+    }
+
+    // an exact ACTION_MOVE that is older than the latency budget
+    private boolean isStaleMove(InputEvent event) {
+        return event instanceof MotionEvent && ((MotionEvent) event).getAction() == MotionEvent.ACTION_MOVE
+                && getAgeMillis((MotionEvent) event) > staleMillis;
+    }
+
+    private static long getAgeMillis(MotionEvent event) {
+        return Math.max(SystemClock.uptimeMillis() - event.getEventTime(), 0);
+    }
+
+    // appends every sample of "next" to "queued" if both are MOVEs of the same gesture and pointers
+    // must hold the lock; returns true if "next" was merged (and recycled)
+    private boolean coalesce(InputEvent queued, InputEvent next) {
+        if (!(queued instanceof MotionEvent) || !(next instanceof MotionEvent))
+            return false;
+        MotionEvent tail = (MotionEvent) queued;
+        MotionEvent move = (MotionEvent) next;
+        // an exact comparison, so anything with a pointer index (POINTER_DOWN/UP) never matches
+        if (tail.getAction() != MotionEvent.ACTION_MOVE || move.getAction() != MotionEvent.ACTION_MOVE
+                || tail.getDownTime() != move.getDownTime() || tail.getSource() != move.getSource()
+                || tail.getDeviceId() != move.getDeviceId() || tail.getMetaState() != move.getMetaState())
+            return false;
+        int pointers = move.getPointerCount();
+        if (pointers != tail.getPointerCount() || pointers > MAX_POINTERS)
+            return false;
+        for (int i = 0; i < pointers; i++) {
+            if (tail.getPointerId(i) != move.getPointerId(i))
+                return false;
+        }
+
+        int history = move.getHistorySize();
+        for (int h = 0; h < history; h++) {
+            for (int i = 0; i < pointers; i++)
+                move.getHistoricalPointerCoords(i, h, sampleCoords[i]);
+            tail.addBatch(move.getHistoricalEventTime(h), sampleCoords, move.getMetaState());
+        }
+        for (int i = 0; i < pointers; i++)
+            move.getPointerCoords(i, sampleCoords[i]);
+        tail.addBatch(move.getEventTime(), sampleCoords, move.getMetaState());
+        move.recycle();
+        return true;
+    }
+
+    private void recordFailure(InputEvent event, Exception e) {
+        metrics.getInjectFailures().increment();
+        long count = ++failures;
+        // don't flood the log if every event is failing
+        if (count == 1 || count % 100 == 0)
+            Log.e(TAG, "Failed injecting " + event + " (" + count + " failures)"
+                    + (e == null ? "" : ": " + e.getMessage()));
+    }
+
+    // must hold the lock
+    private void removeHead() {
+        events[head] = null;
+        actions[head] = null;
+        head = (head + 1) % events.length;
+        size--;
+    }
+
+    // must hold the lock
+    private void grow() {
+        InputEvent[] grownEvents = new InputEvent[events.length * 2];
+        Runnable[] grownActions = new Runnable[events.length * 2];
+        long[] grownNanos = new long[events.length * 2];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % events.length;
+            grownEvents[i] = events[index];
+            grownActions[i] = actions[index];
+            grownNanos[i] = queuedNanos[index];
+        }
+        events = grownEvents;
+        actions = grownActions;
+        queuedNanos = grownNanos;
+        head = 0;
+    }
+
+    // number of events waiting to be injected
+    public int getDepth() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+}
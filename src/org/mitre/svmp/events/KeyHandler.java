@@ -15,38 +15,206 @@ limitations under the License.
 */
 package org.mitre.svmp.events;
 
-import android.hardware.input.InputManager;
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
+import android.view.ViewConfiguration;
 import org.mitre.svmp.protocol.SVMPProtocol;
 
-import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Joe Portner
  * Receives KeyEvent request messages from the client and injects them into the system
  * Requires platform-level access to run properly (uses hidden APIs)
+ *
+ * Key repeat is generated here: the client only needs to send the down and the up, and while a key is held
+ * it repeats at the system's repeat timeout and rate, like a hardware keyboard. Repeats that the client sends
+ * itself are passed through, and stop the server's repeat for that key.
+ * Text (KeyEvents with characters) is typed as key presses if it is short and every character is on the
+ * virtual keyboard; otherwise it is put on the clipboard and pasted, as one edit. A paste runs on the
+ * InputInjector's thread, in order with the other input: it sets the clip and injects ctrl+V without waiting.
+ * The ctrl up is injected from the paste thread, which waits for the focused app to finish handling it (and
+ * so the V before it), then puts back the clip that was there before, or clears ours if there was none, so
+ * the text doesn't stay on the clipboard. A busy app only holds up the paste thread, not the other input;
+ * only a second paste has to wait for the first one to be handled, since they share the clipboard.
  */
 public class KeyHandler {
     private static final String TAG = KeyHandler.class.getName();
 
-    private InputManager inputManager;
+    private InputInjector inputInjector;
+    private final ClockSync clockSync;
+    private final ClipboardManager clipboard;
+    private final KeyCharacterMap keyCharacterMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+    private final boolean repeatKeys;
+    private final int pasteThreshold;
 
-    public KeyHandler() {
-        inputManager = InputManager.getInstance();
+    // the key that is repeating, and the repeat that is scheduled; guarded by "this"
+    private final ScheduledExecutorService repeatTimer = Executors.newSingleThreadScheduledExecutor();
+    private KeyEvent repeatingKey = null;
+    private ScheduledFuture<?> nextRepeat = null;
+
+    // waits for pastes to be handled; the paste in progress, if any, and the clip from before it; guarded by
+    // "pasteLock"
+    private final ExecutorService pasteThread = Executors.newSingleThreadExecutor();
+    private final Object pasteLock = new Object();
+    private String pasting = null;
+    private ClipData savedClip = null;
+
+    public KeyHandler(Context context, InputInjector inputInjector, ClockSync clockSync, boolean repeatKeys,
+                      int pasteThreshold) {
+        this.inputInjector = inputInjector;
+        this.clockSync = clockSync;
+        this.clipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
+        this.repeatKeys = repeatKeys;
+        this.pasteThreshold = pasteThreshold;
     }
 
     public void handleKeyEvent(SVMPProtocol.KeyEvent msg) {
-        // recreate the KeyEvent
-        final KeyEvent keyEvent;
         if (msg.hasCharacters()) {
-            keyEvent = new KeyEvent(msg.getDownTime(), msg.getCharacters(), msg.getDeviceId(), msg.getFlags());
+            handleText(msg.getCharacters(), msg.getDeviceId(), msg.getFlags());
+            return;
+        }
+
+        // note: use our system time instead of message's eventTime, prevents "stale" errors
+        long now = SystemClock.uptimeMillis();
+        final KeyEvent keyEvent = new KeyEvent(clockSync.toLocalUptimeMillis(msg.getDownTime()), now,
+                msg.getAction(), msg.getCode(), msg.getRepeat(), msg.getMetaState(), msg.getDeviceId(),
+                msg.getScanCode(), msg.getFlags(), msg.getSource());
+
+        synchronized (this) {
+            // a new key press ends the current repeat, and so does the repeating key's release, or a repeat of
+            // it from the client
+            if (repeatingKey != null && (keyEvent.getKeyCode() == repeatingKey.getKeyCode()
+                    || (keyEvent.getAction() == KeyEvent.ACTION_DOWN && keyEvent.getRepeatCount() == 0)))
+                cancelRepeatLocked();
+
+            // queued behind any touch events that came before it
+            inputInjector.inject(keyEvent);
+
+            if (repeatKeys && keyEvent.getAction() == KeyEvent.ACTION_DOWN && keyEvent.getRepeatCount() == 0
+                    && !KeyEvent.isModifierKey(keyEvent.getKeyCode())) {
+                repeatingKey = keyEvent;
+                scheduleRepeat(ViewConfiguration.getKeyRepeatTimeout());
+            }
+        }
+    }
+
+    // stops any key repeat; called when the client goes away, since the key's up may never arrive
+    public synchronized void cancelRepeat() {
+        cancelRepeatLocked();
+    }
+
+    private void cancelRepeatLocked() {
+        if (nextRepeat != null)
+            nextRepeat.cancel(false);
+        nextRepeat = null;
+        repeatingKey = null;
+    }
+
+    // must hold the lock
+    private void scheduleRepeat(long delayMillis) {
+        final KeyEvent key = repeatingKey;
+        nextRepeat = repeatTimer.schedule(new Runnable() {
+            public void run() {
+                repeat(key);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void repeat(KeyEvent key) {
+        // the repeat may have been cancelled after it started running
+        if (repeatingKey != key)
+            return;
+        int repeatCount = repeatingKey.getRepeatCount() + 1;
+        // the first repeat is also the long press, like the input dispatcher's own repeats
+        int flags = repeatingKey.getFlags() | (repeatCount == 1 ? KeyEvent.FLAG_LONG_PRESS : 0);
+        repeatingKey = KeyEvent.changeTimeRepeat(repeatingKey, SystemClock.uptimeMillis(), repeatCount, flags);
+        inputInjector.inject(repeatingKey);
+        scheduleRepeat(ViewConfiguration.getKeyRepeatDelay());
+    }
+
+    private void handleText(String text, int deviceId, int flags) {
+        // the input dispatcher doesn't accept injected ACTION_MULTIPLE events, so text has to be typed or pasted
+        KeyEvent[] events = text.length() <= pasteThreshold ? keyCharacterMap.getEvents(text.toCharArray()) : null;
+        if (events != null) {
+            for (KeyEvent event : events)
+                inputInjector.inject(KeyEvent.changeFlags(event, event.getFlags() | flags));
+            return;
         }
-        else {
-            // note: use our system time instead of message's eventTime, prevents "stale" errors
-            keyEvent = new KeyEvent(msg.getDownTime(), new Date().getTime(), msg.getAction(), msg.getCode(), msg.getRepeat(),
-                    msg.getMetaState(), msg.getDeviceId(), msg.getScanCode(), msg.getFlags(), msg.getSource());
+
+        if (clipboard == null) {
+            Log.e(TAG, "Can't paste text of length " + text.length() + ", no clipboard service");
+            return;
         }
+        final String pasted = text;
+        final int pasteDeviceId = deviceId;
+        final int pasteFlags = flags;
+        // the clip is only ours while the injector is running this, so pastes can't overwrite each other
+        inputInjector.runInOrder(new Runnable() {
+            public void run() {
+                paste(pasted, pasteDeviceId, pasteFlags);
+            }
+        });
+    }
 
-        inputManager.injectInputEvent(keyEvent, InputManager.INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH);
+    // called on the injector's thread
+    private void paste(String text, int deviceId, int flags) {
+        synchronized (pasteLock) {
+            // the app may not have read the last paste's clip yet
+            try {
+                while (pasting != null)
+                    pasteLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            pasting = text;
+            savedClip = clipboard.getPrimaryClip();
+        }
+        clipboard.setPrimaryClip(ClipData.newPlainText(null, text));
+
+        // ctrl+V pastes into the focused text view, which reads the clipboard while handling the V down
+        long now = SystemClock.uptimeMillis();
+        int meta = KeyEvent.META_CTRL_ON | KeyEvent.META_CTRL_LEFT_ON;
+        inputInjector.injectNow(new KeyEvent(now, now, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_CTRL_LEFT, 0, meta,
+                deviceId, 0, flags), false);
+        inputInjector.injectNow(new KeyEvent(now, now, KeyEvent.ACTION_DOWN, KeyEvent.KEYCODE_V, 0, meta,
+                deviceId, 0, flags), false);
+        inputInjector.injectNow(new KeyEvent(now, now, KeyEvent.ACTION_UP, KeyEvent.KEYCODE_V, 0, meta,
+                deviceId, 0, flags), false);
+
+        // the V down is already queued, so once the app has finished the ctrl up it has finished the V down too
+        final KeyEvent ctrlUp = new KeyEvent(now, now, KeyEvent.ACTION_UP, KeyEvent.KEYCODE_CTRL_LEFT, 0, 0,
+                deviceId, 0, flags);
+        pasteThread.execute(new Runnable() {
+            public void run() {
+                inputInjector.injectNow(ctrlUp, true);
+                finishPaste();
+            }
+        });
+    }
+
+    // called on the paste thread once a paste has been handled
+    private void finishPaste() {
+        synchronized (pasteLock) {
+            // put the user's clip back, or clear ours, unless something else has replaced it in the meantime;
+            // there is no way to remove the clip, so an empty one takes its place
+            ClipData current = clipboard.getPrimaryClip();
+            if (current != null && current.getItemCount() > 0
+                    && pasting.equals(String.valueOf(current.getItemAt(0).getText())))
+                clipboard.setPrimaryClip(savedClip != null ? savedClip : ClipData.newPlainText(null, ""));
+            savedClip = null;
+            pasting = null;
+            pasteLock.notifyAll();
+        }
     }
 }
@@ -229,7 +229,7 @@ public class LocationHandler extends BaseHandler {
 
         if( validProvider(provider) ) {
             // construct a Location from the Protobuf message
-            Location location = Utility.getLocation(locationUpdate);
+            Location location = Utility.getLocation(locationUpdate, baseServer.getClockSync());
 
             try {
                 // spoof the update to the test provider
@@ -0,0 +1,146 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded FIFO of Responses waiting for the ResponseWriter, along with counters for monitoring.
+ * Not thread safe by itself; the ResponseWriter guards every queue with its own lock.
+ *
+ * A NEVER_DROP queue can grow past its capacity, up to its hard limit. At the hard limit the client has
+ * stalled, and the Response is refused; the ResponseWriter then disconnects the client rather than
+ * silently losing a Response that was never meant to be dropped.
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        // discard the oldest queued Response to make room for the new one
+        DROP_OLDEST,
+        // discard the new Response
+        DROP_NEWEST,
+        // don't discard; the capacity is only a soft limit that is counted when exceeded, and reaching the hard
+        // limit disconnects the client
+        NEVER_DROP
+    }
+
+    private final String name;
+    private final int capacity;
+    private final int hardLimit;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Response> queue;
+
+    private long enqueued = 0;
+    private long dropped = 0;
+    private long overCapacity = 0;
+    private long refused = 0;
+    private int highWater = 0;
+
+    // the hard limit only applies to NEVER_DROP, and is raised to the capacity if it is below it
+    public OutboundQueue(String name, int capacity, int hardLimit, OverflowPolicy policy) {
+        this.name = name;
+        this.capacity = capacity;
+        this.hardLimit = Math.max(hardLimit, capacity);
+        this.policy = policy;
+        this.queue = new ArrayDeque<Response>(Math.min(capacity, 64));
+    }
+
+    // returns false if a Response (either this one or an older one) was dropped, or this one was refused
+    boolean offer(Response response) {
+        boolean accepted = true;
+        if (queue.size() >= capacity) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    queue.poll();
+                    dropped++;
+                    accepted = false;
+                    break;
+                case DROP_NEWEST:
+                    dropped++;
+                    return false;
+                case NEVER_DROP:
+                    if (queue.size() >= hardLimit) {
+                        refused++;
+                        return false;
+                    }
+                    overCapacity++;
+                    break;
+            }
+        }
+
+        queue.add(response);
+        enqueued++;
+        if (queue.size() > highWater)
+            highWater = queue.size();
+        return accepted;
+    }
+
+    Response poll() {
+        return queue.poll();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getHardLimit() {
+        return hardLimit;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getOverCapacity() {
+        return overCapacity;
+    }
+
+    // Responses refused at the hard limit
+    public long getRefused() {
+        return refused;
+    }
+
+    public int getHighWater() {
+        return highWater;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s] depth=%d/%d high=%d enqueued=%d dropped=%d overCapacity=%d refused=%d",
+                name, policy, queue.size(), capacity, highWater, enqueued, dropped, overCapacity, refused);
+    }
+}
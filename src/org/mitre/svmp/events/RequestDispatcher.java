@@ -0,0 +1,292 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.os.Process;
+import com.google.protobuf.CodedInputStream;
+import android.util.Log;
+import org.mitre.svmp.events.metrics.Histogram;
+import org.mitre.svmp.events.metrics.Metrics;
+import org.mitre.svmp.protocol.SVMPProtocol.Request;
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Maps each Request type to the handler that processes it and the thread it runs on.
+ * Handlers that do slow Binder work (launching activities, setting the time zone, WebRTC setup) are moved
+ * off of the selector thread so they can't delay the touch and key input that arrives right behind them.
+ *
+ * A lane is a serial queue of work. Most lanes share the bulk thread pool; a lane can also be given its own
+ * dedicated thread, at a higher priority, so that nothing else ever runs ahead of it.
+ *
+ * Deferred frames are copied into pooled tasks, each with a reusable buffer, so that a steady stream of a
+ * frequent type (touch) doesn't allocate on its way to the handler.
+ */
+public class RequestDispatcher implements RequestSink {
+    private static final String TAG = RequestDispatcher.class.getName();
+
+    private static final int BULK_POOL_SIZE = 3;
+    // frame tasks kept for reuse by each type, and the largest frame buffer that is kept with them
+    private static final int MAX_POOLED_TASKS = 64;
+    private static final int MAX_POOLED_FRAME_SIZE = 64 * 1024;
+    private static final int INITIAL_FRAME_SIZE = 256;
+
+    public enum ExecutionPolicy {
+        // run on the selector thread; for handlers that are fast and don't block
+        INLINE,
+        // run in order on a named lane; types that share a lane stay ordered relative to each other
+        SERIAL,
+        // run on the bulk pool; no ordering guarantees
+        POOLED
+    }
+
+    private final Map<RequestType, Registration> registrations =
+            new EnumMap<RequestType, Registration>(RequestType.class);
+    private final Map<String, SerialExecutor> lanes = new HashMap<String, SerialExecutor>();
+    private final ExecutorService bulkPool = Executors.newFixedThreadPool(BULK_POOL_SIZE,
+            new NamedThreadFactory("bulk", Process.THREAD_PRIORITY_DEFAULT));
+    private final Metrics metrics;
+
+    public RequestDispatcher(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // creates a lane that runs on its own thread at the given priority (see android.os.Process)
+    public synchronized void createLane(String name, int threadPriority) {
+        lanes.put(name, new SerialExecutor(name, new NamedThreadFactory(name, threadPriority)));
+    }
+
+    // register a handler that runs inline or on the bulk pool
+    public void register(RequestType type, ExecutionPolicy policy, RequestHandler handler) {
+        if (policy == ExecutionPolicy.SERIAL)
+            throw new IllegalArgumentException("SERIAL handlers must name a lane");
+        registrations.put(type, new Registration(type, policy, null, null, handler));
+    }
+
+    // register a handler that runs on a named lane, creating the lane on the bulk pool if needed
+    public void register(RequestType type, String lane, RequestHandler handler) {
+        register(type, lane, null, handler);
+    }
+
+    // as above, but the raw frame is offered to "frameHandler" first, on the lane; "handler" only gets the
+    // Requests that it doesn't handle, or that arrive already parsed
+    public void register(RequestType type, String lane, FrameHandler frameHandler, RequestHandler handler) {
+        registrations.put(type, new Registration(type, ExecutionPolicy.SERIAL, getLane(lane), frameHandler, handler));
+    }
+
+    // frames of types that aren't handled inline are parsed on the handler's own thread, so that a large
+    // Request (e.g. an APPS refresh with the client's whole app list) doesn't hold up the selector thread
+    public boolean isDeferred(RequestType type) {
+        Registration registration = registrations.get(type);
+        return registration != null && registration.policy != ExecutionPolicy.INLINE;
+    }
+
+    // called from the selector thread; exceptions from inline handlers are passed to the caller
+    public void dispatch(final Request request) throws Exception {
+        metrics.recordInbound(request.getType());
+        final Registration registration = registrations.get(request.getType());
+        if (registration == null) {
+            Log.w(TAG, "No handler registered for " + request.getType());
+            return;
+        }
+
+        if (registration.policy == ExecutionPolicy.INLINE) {
+            registration.run(request);
+        } else {
+            registration.execute(new Runnable() {
+                public void run() {
+                    registration.runAndLog(request);
+                }
+            });
+        }
+    }
+
+    // called from the selector thread with an undecoded frame for a deferred type
+    public void dispatchFrame(RequestType type, byte[] buffer, int offset, int length) {
+        metrics.recordInbound(type);
+        Registration registration = registrations.get(type);
+        FrameTask task = registration.obtainTask();
+        task.set(buffer, offset, length);
+        registration.execute(task);
+    }
+
+    // runs a task on a named lane, in order with the Requests dispatched to it
+    public void execute(String lane, Runnable task) {
+        getLane(lane).execute(task);
+    }
+
+    private synchronized SerialExecutor getLane(String name) {
+        SerialExecutor lane = lanes.get(name);
+        if (lane == null) {
+            lane = new SerialExecutor(name, bulkPool);
+            lanes.put(name, lane);
+        }
+        return lane;
+    }
+
+    // the number of tasks waiting in each lane, for monitoring
+    public synchronized Map<String, Integer> getLaneDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (SerialExecutor lane : lanes.values())
+            depths.put(lane.getName(), lane.getDepth());
+        return depths;
+    }
+
+    private class Registration {
+        private final RequestType type;
+        private final ExecutionPolicy policy;
+        private final SerialExecutor lane;
+        private final FrameHandler frameHandler;
+        private final RequestHandler handler;
+        private final Histogram handlerNanos;
+        // idle frame tasks; guarded by itself
+        private final ArrayDeque<FrameTask> taskPool = new ArrayDeque<FrameTask>();
+
+        private Registration(RequestType type, ExecutionPolicy policy, SerialExecutor lane,
+                             FrameHandler frameHandler, RequestHandler handler) {
+            this.type = type;
+            this.policy = policy;
+            this.lane = lane;
+            this.frameHandler = frameHandler;
+            this.handler = handler;
+            this.handlerNanos = metrics.getHandlerNanos(type);
+        }
+
+        private FrameTask obtainTask() {
+            synchronized (taskPool) {
+                FrameTask task = taskPool.poll();
+                if (task != null)
+                    return task;
+            }
+            return new FrameTask(this);
+        }
+
+        private void recycle(FrameTask task) {
+            synchronized (taskPool) {
+                if (taskPool.size() < MAX_POOLED_TASKS)
+                    taskPool.push(task);
+            }
+        }
+
+        private void execute(Runnable task) {
+            if (lane != null)
+                lane.execute(task);
+            else
+                bulkPool.execute(task);
+        }
+
+        private void run(Request request) throws Exception {
+            long start = System.nanoTime();
+            try {
+                handler.handle(request);
+            } finally {
+                handlerNanos.recordSince(start);
+            }
+        }
+
+        // off of the selector thread there's nobody to pass the exception to
+        private void runAndLog(Request request) {
+            try {
+                run(request);
+            } catch (Exception e) {
+                Log.e(TAG, "Error handling " + type + " request: " + e.getMessage(), e);
+            }
+        }
+
+        // returns false if there's no frame handler, or it passed on the frame
+        private boolean runFrameAndLog(byte[] frame, int length) {
+            if (frameHandler == null)
+                return false;
+            long start = System.nanoTime();
+            try {
+                if (!frameHandler.handleFrame(frame, length))
+                    return false;
+            } catch (Exception e) {
+                // it may have been partly handled, so it isn't handled again
+                Log.e(TAG, "Error handling " + type + " frame: " + e.getMessage(), e);
+            }
+            handlerNanos.recordSince(start);
+            return true;
+        }
+    }
+
+    // a deferred frame on its way to its handler; returned to its Registration's pool once it has run
+    private class FrameTask implements Runnable {
+        private final Registration registration;
+        private byte[] frame = new byte[INITIAL_FRAME_SIZE];
+        private int length;
+
+        private FrameTask(Registration registration) {
+            this.registration = registration;
+        }
+
+        private void set(byte[] buffer, int offset, int length) {
+            if (frame.length < length)
+                frame = new byte[Math.max(length, frame.length * 2)];
+            System.arraycopy(buffer, offset, frame, 0, length);
+            this.length = length;
+        }
+
+        public void run() {
+            try {
+                if (registration.runFrameAndLog(frame, length))
+                    return;
+                Request request;
+                try {
+                    request = Request.parseFrom(CodedInputStream.newInstance(frame, 0, length));
+                } catch (Exception e) {
+                    Log.e(TAG, "Error parsing " + registration.type + " request: " + e.getMessage());
+                    return;
+                }
+                registration.runAndLog(request);
+            } finally {
+                // don't hold on to the buffer of an unusually large frame
+                if (frame.length > MAX_POOLED_FRAME_SIZE)
+                    frame = new byte[INITIAL_FRAME_SIZE];
+                registration.recycle(this);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final int threadPriority;
+        private int count = 0;
+
+        private NamedThreadFactory(String name, int threadPriority) {
+            this.name = name;
+            this.threadPriority = threadPriority;
+        }
+
+        public synchronized Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(threadPriority);
+                    runnable.run();
+                }
+            }, "dispatch-" + name + "-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
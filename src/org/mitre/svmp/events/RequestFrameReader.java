@@ -0,0 +1,166 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import com.google.protobuf.CodedInputStream;
+import org.mitre.svmp.protocol.SVMPProtocol.Request;
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the inbound byte stream into length-delimited Requests.
+ * Socket reads go into one reusable read-ahead buffer; length prefixes are parsed in place, and every
+ * complete frame in the buffer is decoded in a single pass that shares one CodedInputStream.
+ * A partial frame stays in the buffer until the rest of it arrives. Only used from the selector thread.
+ *
+ * Frames whose handlers don't run inline are not decoded here at all: the Request type is peeked from the
+ * frame and the raw bytes are handed to the sink, to be parsed on the handler's own thread.
+ */
+class RequestFrameReader {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    // protect against a corrupt length prefix making us allocate an enormous buffer
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // the tag of the Request "type" field; its wire type is varint (0)
+    private static final int TYPE_TAG = Request.TYPE_FIELD_NUMBER << 3;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+    // buffered bytes that have not been decoded yet are in [start, end)
+    private int start = 0;
+    private int end = 0;
+    // the number of bytes we need buffered before the next frame can be decoded
+    private int required = 0;
+    private volatile long frames = 0;
+
+    // reads whatever the channel has available, returns -1 when the channel has reached end-of-stream
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        wrapper.limit(buffer.length);
+        wrapper.position(end);
+        int count = channel.read(wrapper);
+        if (count > 0)
+            end += count;
+        return count;
+    }
+
+    // decodes every complete frame that is buffered and passes it to the sink
+    void decode(RequestSink sink) throws Exception {
+        CodedInputStream input = null;
+        int position = start;
+
+        while (position < end) {
+            // parse the varint length prefix in place
+            int length = 0;
+            int cursor = position;
+            boolean complete = false;
+            for (int shift = 0; cursor < end; shift += 7) {
+                if (shift >= 32)
+                    throw new IOException("Malformed length prefix from client");
+                byte b = buffer[cursor++];
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete)
+                break;
+            if (length < 0 || length > MAX_FRAME_SIZE)
+                throw new IOException("Invalid frame length from client: " + length);
+            if (end - cursor < length) {
+                // remember how much we need so that readFrom() makes room for the whole frame
+                required = cursor - position + length;
+                break;
+            }
+
+            if (input == null)
+                input = CodedInputStream.newInstance(buffer, position, end - position);
+            else
+                input.resetSizeCounter();
+            input.readRawVarint32();
+            // consume the frame before dispatching it, a handler that throws will close the connection anyway
+            position = cursor + length;
+            required = 0;
+            start = position;
+            frames++;
+
+            RequestType type = peekType(cursor, length);
+            if (type != null && sink.isDeferred(type)) {
+                input.skipRawBytes(length);
+                sink.dispatchFrame(type, buffer, cursor, length);
+            } else {
+                int oldLimit = input.pushLimit(length);
+                Request request = Request.parseFrom(input);
+                input.popLimit(oldLimit);
+                sink.dispatch(request);
+            }
+        }
+
+        start = position;
+        if (start == end) {
+            // everything was consumed, the next read can start at the beginning of the buffer
+            start = end = 0;
+            if (buffer.length > INITIAL_BUFFER_SIZE)
+                resize(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    // the number of frames decoded since the connection was opened
+    long getFrames() {
+        return frames;
+    }
+
+    // returns the type of the Request in the frame if it's the first field, which is where protobuf writes it
+    private RequestType peekType(int offset, int length) {
+        if (length < 2 || buffer[offset] != TYPE_TAG)
+            return null;
+        int value = 0;
+        for (int i = offset + 1, shift = 0; i < offset + length && shift < 32; i++, shift += 7) {
+            byte b = buffer[i];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return RequestType.valueOf(value);
+        }
+        return null;
+    }
+
+    // makes sure there is room to read into, and room for the whole of a partially received frame
+    private void ensureSpace() {
+        int buffered = end - start;
+        int needed = Math.max(required, buffered + 1);
+        if (needed > buffer.length) {
+            resize(Math.max(needed, buffer.length * 2));
+        } else if (end == buffer.length || start + needed > buffer.length) {
+            // shift the partial frame to the front of the buffer
+            System.arraycopy(buffer, start, buffer, 0, buffered);
+            start = 0;
+            end = buffered;
+        }
+    }
+
+    private void resize(int size) {
+        byte[] resized = new byte[size];
+        int buffered = end - start;
+        System.arraycopy(buffer, start, resized, 0, buffered);
+        buffer = resized;
+        wrapper = ByteBuffer.wrap(buffer);
+        start = 0;
+        end = buffered;
+    }
+}
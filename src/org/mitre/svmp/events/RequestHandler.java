@@ -0,0 +1,25 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.mitre.svmp.protocol.SVMPProtocol.Request;
+
+/**
+ * Handles one type of Request from the client; registered with the RequestDispatcher.
+ */
+public interface RequestHandler {
+    public void handle(Request request) throws Exception;
+}
@@ -0,0 +1,32 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.mitre.svmp.protocol.SVMPProtocol.Request;
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
+
+/**
+ * Receives the frames that the RequestFrameReader splits out of the inbound stream.
+ */
+public interface RequestSink {
+    // true if frames of this type should be handed over undecoded, via dispatchFrame()
+    public boolean isDeferred(RequestType type);
+
+    public void dispatch(Request request) throws Exception;
+
+    // the frame is "length" bytes of "buffer" at "offset", and has to be copied if it is used after returning
+    public void dispatchFrame(RequestType type, byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,139 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import com.google.protobuf.CodedOutputStream;
+import org.mitre.svmp.events.metrics.Metrics;
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Serializes batches of Responses as length-delimited frames, packed back to back into pooled direct
+ * buffers so that the whole batch can go out in a single gathering write.
+ * Not thread safe; the BaseServer uses it while holding its outbound lock.
+ */
+class ResponseEncoder {
+    private static final int INITIAL_SCRATCH_SIZE = 4096;
+    // frames larger than this are serialized into a temporary array rather than growing the scratch array
+    private static final int MAX_SCRATCH_SIZE = 256 * 1024;
+
+    private final BufferPool pool;
+    private final Metrics metrics;
+    private byte[] scratch = new byte[INITIAL_SCRATCH_SIZE];
+    private final byte[] prefix = new byte[5];
+    private ByteBuffer current;
+
+    // only written while holding the BaseServer outbound lock
+    private volatile long messages = 0;
+    private volatile long heapBytesAllocated = INITIAL_SCRATCH_SIZE;
+
+    ResponseEncoder(BufferPool pool, Metrics metrics) {
+        this.pool = pool;
+        this.metrics = metrics;
+    }
+
+    // appends the encoded batch to "out" as flipped buffers that are ready to be written
+    // if a compressor is given, the Responses it accepts are sent compressed when that makes them smaller
+    void encode(List<Response> batch, List<ByteBuffer> out, FrameCompressor compressor) throws IOException {
+        current = null;
+        for (Response response : batch) {
+            // the serialized size is memoized by the message, so this doesn't serialize it twice
+            int size = response.getSerializedSize();
+            int frameSize;
+            if (compressor != null && compressor.accepts(response, size)) {
+                byte[] bytes = getScratch(size);
+                CodedOutputStream output = CodedOutputStream.newInstance(bytes, 0, size);
+                response.writeTo(output);
+                output.checkNoSpaceLeft();
+
+                int length = compressor.compress(bytes, size);
+                if (length > 0) {
+                    output = CodedOutputStream.newInstance(prefix);
+                    output.writeRawVarint32(length);
+                    append(prefix, CodedOutputStream.computeRawVarint32Size(length), out);
+                    append(compressor.getOutput(), length, out);
+                    frameSize = CodedOutputStream.computeRawVarint32Size(length) + length;
+                } else {
+                    // not compressible, send it as it is
+                    output = CodedOutputStream.newInstance(prefix);
+                    output.writeRawVarint32(size);
+                    append(prefix, CodedOutputStream.computeRawVarint32Size(size), out);
+                    append(bytes, size, out);
+                    frameSize = CodedOutputStream.computeRawVarint32Size(size) + size;
+                }
+            } else {
+                frameSize = CodedOutputStream.computeRawVarint32Size(size) + size;
+                byte[] bytes = getScratch(frameSize);
+
+                CodedOutputStream output = CodedOutputStream.newInstance(bytes, 0, frameSize);
+                output.writeRawVarint32(size);
+                response.writeTo(output);
+                output.checkNoSpaceLeft();
+                append(bytes, frameSize, out);
+            }
+            metrics.recordOutbound(response.getType(), frameSize);
+            messages++;
+        }
+
+        if (current != null) {
+            current.flip();
+            out.add(current);
+            current = null;
+        }
+    }
+
+    // copies bytes into the tail of the current buffer, spilling into new buffers as needed
+    private void append(byte[] bytes, int length, List<ByteBuffer> out) {
+        int offset = 0;
+        while (offset < length) {
+            if (current == null || !current.hasRemaining()) {
+                if (current != null) {
+                    current.flip();
+                    out.add(current);
+                }
+                current = pool.acquire();
+            }
+            int count = Math.min(current.remaining(), length - offset);
+            current.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    private byte[] getScratch(int size) {
+        if (size <= scratch.length)
+            return scratch;
+
+        if (size > MAX_SCRATCH_SIZE) {
+            heapBytesAllocated += size;
+            return new byte[size];
+        }
+        scratch = new byte[Math.min(Math.max(size, scratch.length * 2), MAX_SCRATCH_SIZE)];
+        heapBytesAllocated += scratch.length;
+        return scratch;
+    }
+
+    long getMessages() {
+        return messages;
+    }
+
+    // heap and direct bytes allocated for serialization since the server started
+    long getBytesAllocated() {
+        return heapBytesAllocated + pool.getAllocatedBytes();
+    }
+}
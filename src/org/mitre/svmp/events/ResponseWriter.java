@@ -0,0 +1,210 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.util.Log;
+import org.mitre.svmp.events.metrics.SnapshotWriter;
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dedicated thread that drains outbound Responses and hands them to the BaseServer for writing.
+ * Producers (BroadcastReceivers on the main looper, WebRTC callbacks, AppsRefreshHandler threads, the
+ * selector thread) only enqueue, so a slow client can never block them. Each traffic class has its own
+ * bounded queue and overflow policy; classes are drained in priority order.
+ *
+ * A NEVER_DROP class that reaches its hard limit means the client has stopped reading. Rather than grow
+ * without bound or lose a Response that can't be dropped, the queues are cleared and the client is
+ * disconnected; its session is ended, so it starts over instead of resuming with a gap.
+ */
+public class ResponseWriter extends Thread {
+    private static final String TAG = ResponseWriter.class.getName();
+
+    // maximum number of Responses coalesced into one write
+    private static final int MAX_BATCH = 64;
+
+    // in priority order, the writer always drains a higher class before a lower one
+    public enum TrafficClass {
+        // PING, WEBRTC, VMREADY and SCREENINFO; small and latency sensitive, never dropped
+        CONTROL(256, 1024, OutboundQueue.OverflowPolicy.NEVER_DROP),
+        // LOCATION, INTENT, APPS and anything else
+        STANDARD(256, 1024, OutboundQueue.OverflowPolicy.NEVER_DROP),
+        // intercepted notifications; a newer notification is worth more than an old one
+        NOTIFICATION(32, 32, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        private final int defaultCapacity;
+        private final int defaultHardLimit;
+        private final OutboundQueue.OverflowPolicy defaultPolicy;
+
+        TrafficClass(int defaultCapacity, int defaultHardLimit, OutboundQueue.OverflowPolicy defaultPolicy) {
+            this.defaultCapacity = defaultCapacity;
+            this.defaultHardLimit = defaultHardLimit;
+            this.defaultPolicy = defaultPolicy;
+        }
+
+        public static TrafficClass of(Response response) {
+            switch (response.getType()) {
+                case PING:
+                case WEBRTC:
+                case VMREADY:
+                case SCREENINFO:
+                    return CONTROL;
+                case NOTIFICATION:
+                    return NOTIFICATION;
+                default:
+                    return STANDARD;
+            }
+        }
+    }
+
+    private final BaseServer baseServer;
+    private final OutboundQueue[] queues;
+    private final Object lock = new Object();
+
+    public ResponseWriter(BaseServer baseServer, ServerConfig config) {
+        super("ResponseWriter");
+        this.baseServer = baseServer;
+
+        TrafficClass[] classes = TrafficClass.values();
+        queues = new OutboundQueue[classes.length];
+        for (TrafficClass trafficClass : classes) {
+            String prefix = "OutboundQueue." + trafficClass.name();
+            queues[trafficClass.ordinal()] = new OutboundQueue(
+                    trafficClass.name(),
+                    config.getInt(prefix + ".Capacity", trafficClass.defaultCapacity),
+                    config.getInt(prefix + ".HardLimit", trafficClass.defaultHardLimit),
+                    config.getEnum(prefix + ".Policy", OutboundQueue.OverflowPolicy.class, trafficClass.defaultPolicy));
+        }
+        setDaemon(true);
+    }
+
+    // may be called from any thread, never blocks on the network
+    public void offer(Response response) {
+        OutboundQueue queue = queues[TrafficClass.of(response).ordinal()];
+        boolean accepted;
+        boolean refused = false;
+        long dropped;
+        String stats = null;
+        synchronized (lock) {
+            accepted = queue.offer(response);
+            dropped = queue.getDropped();
+            if (!accepted && queue.getPolicy() == OutboundQueue.OverflowPolicy.NEVER_DROP) {
+                // the client is too far behind to catch up; nothing queued is worth writing to it any more
+                refused = true;
+                stats = queue.toString();
+                for (OutboundQueue q : queues)
+                    q.clear();
+            }
+            lock.notify();
+        }
+
+        if (refused) {
+            Log.w(TAG, "Outbound queue reached its hard limit, disconnecting the client: " + stats);
+            baseServer.disconnectStalledClient();
+        } else if (!accepted && (dropped == 1 || dropped % 100 == 0)) {
+            // don't flood the log if the client has stalled
+            Log.w(TAG, "Outbound queue overflow: " + describe(queue));
+        }
+    }
+
+    // discards anything that was queued for a client that has since disconnected
+    public void clear() {
+        synchronized (lock) {
+            for (OutboundQueue queue : queues)
+                queue.clear();
+        }
+    }
+
+    public void run() {
+        List<Response> batch = new ArrayList<Response>(MAX_BATCH);
+        while (!isInterrupted()) {
+            try {
+                // take everything that is queued (up to the batch limit) so it can be coalesced into one write
+                synchronized (lock) {
+                    Response response;
+                    while ((response = poll()) == null)
+                        lock.wait();
+                    do {
+                        batch.add(response);
+                    } while (batch.size() < MAX_BATCH && (response = poll()) != null);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                // blocks while the client connection has too much unwritten output
+                baseServer.writeResponses(batch);
+            } catch (Exception e) {
+                Log.e(TAG, "Error writing response: " + e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+        Log.d(TAG, "ResponseWriter stopped");
+    }
+
+    // must hold the lock
+    private Response poll() {
+        for (OutboundQueue queue : queues) {
+            Response response = queue.poll();
+            if (response != null)
+                return response;
+        }
+        return null;
+    }
+
+    // total number of Responses waiting to be written
+    public int getDepth() {
+        int depth = 0;
+        synchronized (lock) {
+            for (OutboundQueue queue : queues)
+                depth += queue.getDepth();
+        }
+        return depth;
+    }
+
+    // copies the counters under the lock, but writes them out (possibly to a slow reader) without it
+    public void writeTo(SnapshotWriter out) throws IOException {
+        long[][] counters = new long[queues.length][];
+        synchronized (lock) {
+            for (int i = 0; i < queues.length; i++) {
+                OutboundQueue queue = queues[i];
+                counters[i] = new long[]{queue.getDepth(), queue.getCapacity(), queue.getHighWater(),
+                        queue.getEnqueued(), queue.getDropped(), queue.getOverCapacity(), queue.getRefused()};
+            }
+        }
+        for (int i = 0; i < queues.length; i++) {
+            String prefix = "queue." + queues[i].getName();
+            out.counter(prefix + ".depth", counters[i][0]);
+            out.counter(prefix + ".capacity", counters[i][1]);
+            out.counter(prefix + ".highWater", counters[i][2]);
+            out.counter(prefix + ".enqueued", counters[i][3]);
+            out.counter(prefix + ".dropped", counters[i][4]);
+            out.counter(prefix + ".overCapacity", counters[i][5]);
+            out.counter(prefix + ".refused", counters[i][6]);
+        }
+    }
+
+    private String describe(OutboundQueue queue) {
+        synchronized (lock) {
+            return queue.toString();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes a batch of client sensor events from the SensorRing into a reusable direct ByteBuffer, for the native code to write to
+ * the sensor socket in one call. Each event is a BaseServer.SENSOR_RECORD_SIZE record, in native byte order:
+ *   int type, int accuracy, long timestamp (mapped onto our clock), float[3] values (missing values are 0)
+ * The native code copies the records into its svmp_sensor_event_t structs. Only used from the sensor thread.
+ */
+public class SensorBatchEncoder {
+    private static final int INITIAL_RECORDS = 32;
+
+    private final ClockSync clockSync;
+    private ByteBuffer buffer;
+
+    public SensorBatchEncoder(ClockSync clockSync) {
+        this.clockSync = clockSync;
+        buffer = allocate(INITIAL_RECORDS);
+    }
+
+    // starts a batch of up to "records" records in getBuffer(), replacing the last batch
+    public void begin(int records) {
+        if (buffer.capacity() < records * BaseServer.SENSOR_RECORD_SIZE)
+            buffer = allocate(Math.max(records, buffer.capacity() / BaseServer.SENSOR_RECORD_SIZE * 2));
+        buffer.clear();
+    }
+
+    // appends the index'th available event on the ring
+    public void put(SensorRing ring, int index) {
+        buffer.putInt(ring.getType(index));
+        buffer.putInt(ring.getAccuracy(index));
+        // the client's timestamp is on its own clock, map it onto ours
+        buffer.putLong(clockSync.toLocalSensorTimestamp(ring.getType(index), ring.getTimestamp(index),
+                ring.getArrivedNanos(index)));
+        for (int j = 0; j < SensorRing.VALUES; j++)
+            buffer.putFloat(ring.getValue(index, j));
+    }
+
+    // appends a record that was encoded for an earlier batch, so its timestamp is already on our clock
+    public void put(int type, int accuracy, long timestamp, float[] values, int offset) {
+        buffer.putInt(type);
+        buffer.putInt(accuracy);
+        buffer.putLong(timestamp);
+        for (int j = 0; j < SensorRing.VALUES; j++)
+            buffer.putFloat(values[offset + j]);
+    }
+
+    // finishes the batch, for the native code to read
+    public void finish() {
+        buffer.flip();
+    }
+
+    // the fields of the n'th record of the current batch
+    public int getType(int n) {
+        return buffer.getInt(n * BaseServer.SENSOR_RECORD_SIZE);
+    }
+
+    public int getAccuracy(int n) {
+        return buffer.getInt(n * BaseServer.SENSOR_RECORD_SIZE + 4);
+    }
+
+    public long getTimestamp(int n) {
+        return buffer.getLong(n * BaseServer.SENSOR_RECORD_SIZE + 8);
+    }
+
+    public float getValue(int n, int value) {
+        return buffer.getFloat(n * BaseServer.SENSOR_RECORD_SIZE + 16 + value * 4);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int records) {
+        return ByteBuffer.allocateDirect(records * BaseServer.SENSOR_RECORD_SIZE).order(ByteOrder.nativeOrder());
+    }
+}
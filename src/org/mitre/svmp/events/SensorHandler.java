@@ -0,0 +1,166 @@
+/*
+ Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this work except in compliance with the License.
+ You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.mitre.svmp.events;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+import org.json.JSONObject;
+import org.mitre.svmp.protocol.SVMPProtocol.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * S->C: Tracks which sensors the apps in the VM are listening to, and tells the client which sensors to stream
+ * and how fast, so it doesn't stream sensors nobody is listening to.
+ *
+ * The sensor service broadcasts SENSOR_SUBSCRIBE_ACTION when a listener is registered, and
+ * SENSOR_UNSUBSCRIBE_ACTION when it is unregistered, with the extras
+ *   "type" (int)                 the sensor type, android.hardware.Sensor.TYPE_*
+ *   "id" (String)                identifies the registration, so its unsubscribe can be matched to it
+ *   "samplingPeriodUs" (int)     the requested sampling period, subscribe only; 0 for as fast as possible
+ * Each sensor type is streamed at the fastest rate any of its listeners asked for. Clients that offer
+ * "sensors":["subscribe"] in the session handshake (see ClientSession) are sent control messages:
+ *   S->C {"type":"sensor","action":"subscribe","sensor":T,"rateHz":R}   start streaming type T, or change its
+ *                                                                      rate; R is 0 for as fast as possible
+ *   S->C {"type":"sensor","action":"unsubscribe","sensor":T}           stop streaming type T
+ * A new session starts with a subscribe for every sensor that has listeners. The same rates are applied to
+ * the sensor events the client sends, by the SensorRateLimiter.
+ */
+public class SensorHandler extends BaseHandler {
+    private static final String TAG = SensorHandler.class.getName();
+
+    public static final String SUBSCRIBE_MODE = "subscribe";
+
+    private static final String ACTION_SUBSCRIBE = "subscribe";
+    private static final String ACTION_UNSUBSCRIBE = "unsubscribe";
+    private static final int MICROS_PER_SECOND = 1000000;
+    private static final int NOT_SUBSCRIBED = -1;
+
+    private final SensorRateLimiter rateLimiter;
+    // the requested rate of each registration, by sensor type and then by id; guarded by "this"
+    private final Map<Integer, Map<String, Integer>> subscriptions = new TreeMap<Integer, Map<String, Integer>>();
+
+    public SensorHandler(BaseServer baseServer, SensorRateLimiter rateLimiter) {
+        super(baseServer, SENSOR_SUBSCRIBE_ACTION, SENSOR_UNSUBSCRIBE_ACTION);
+        this.rateLimiter = rateLimiter;
+    }
+
+    // receive messages from the sensor service, pass them back to the client
+    // like the location actions, the subscribe and unsubscribe actions are protected system broadcasts
+    public void onReceive(Context context, Intent intent) {
+        boolean subscribe = SENSOR_SUBSCRIBE_ACTION.equals(intent.getAction());
+        if (!subscribe && !SENSOR_UNSUBSCRIBE_ACTION.equals(intent.getAction()))
+            return;
+
+        int type = intent.getIntExtra("type", -1);
+        String id = intent.getStringExtra("id");
+        if (type < 0 || id == null) {
+            Log.e(TAG, "Received sensor subscription intent without a type or id");
+            return;
+        }
+        Log.d(TAG, "Received sensor " + (subscribe ? "subscribe" : "unsubscribe") + " intent for type " + type);
+
+        Response response;
+        synchronized (this) {
+            int before = getRate(type);
+            if (subscribe) {
+                Map<String, Integer> registrations = subscriptions.get(type);
+                if (registrations == null) {
+                    registrations = new HashMap<String, Integer>();
+                    subscriptions.put(type, registrations);
+                }
+                registrations.put(id, toRate(intent.getIntExtra("samplingPeriodUs", 0)));
+            } else {
+                Map<String, Integer> registrations = subscriptions.get(type);
+                if (registrations == null || registrations.remove(id) == null)
+                    return;
+                if (registrations.isEmpty())
+                    subscriptions.remove(type);
+            }
+
+            // only tell the client when what it should be streaming has changed
+            int after = getRate(type);
+            if (after == before)
+                return;
+            rateLimiter.setDemandedRate(type, Math.max(after, 0));
+            response = after == NOT_SUBSCRIBED ? buildUnsubscribe(type) : buildSubscribe(type, after);
+        }
+
+        // checked after the change, so a session that starts in between still gets it in its first subscribes
+        if (baseServer.isSensorSubscriber())
+            sendMessage(response);
+    }
+
+    // a subscribe for every sensor that has listeners, for the start of a session
+    public synchronized List<Response> buildSubscriptions() {
+        List<Response> responses = new ArrayList<Response>(subscriptions.size());
+        for (Integer type : subscriptions.keySet())
+            responses.add(buildSubscribe(type, getRate(type)));
+        return responses;
+    }
+
+    // used for diagnostics output, e.g. "1:50 4:0"
+    public synchronized String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        for (Integer type : subscriptions.keySet()) {
+            if (builder.length() > 0)
+                builder.append(' ');
+            builder.append(type).append(':').append(getRate(type));
+        }
+        return builder.length() > 0 ? builder.toString() : "none";
+    }
+
+    // the fastest rate asked for, 0 if any listener wants it as fast as possible; must hold the lock
+    private int getRate(int type) {
+        Map<String, Integer> registrations = subscriptions.get(type);
+        if (registrations == null)
+            return NOT_SUBSCRIBED;
+        int fastest = NOT_SUBSCRIBED;
+        for (int rate : registrations.values()) {
+            if (rate == 0)
+                return 0;
+            fastest = Math.max(fastest, rate);
+        }
+        return fastest;
+    }
+
+    // converts a sampling period to a rate in Hz, rounded up
+    private static int toRate(int samplingPeriodUs) {
+        if (samplingPeriodUs <= 0)
+            return 0;
+        return (MICROS_PER_SECOND + samplingPeriodUs - 1) / samplingPeriodUs;
+    }
+
+    private static Response buildSubscribe(int type, int rate) {
+        JSONObject json = ControlChannel.newMessage(ControlChannel.TYPE_SENSOR);
+        ControlChannel.put(json, "action", ACTION_SUBSCRIBE);
+        ControlChannel.put(json, "sensor", type);
+        ControlChannel.put(json, "rateHz", rate);
+        return ControlChannel.buildResponse(json);
+    }
+
+    private static Response buildUnsubscribe(int type) {
+        JSONObject json = ControlChannel.newMessage(ControlChannel.TYPE_SENSOR);
+        ControlChannel.put(json, "action", ACTION_UNSUBSCRIBE);
+        ControlChannel.put(json, "sensor", type);
+        return ControlChannel.buildResponse(json);
+    }
+}
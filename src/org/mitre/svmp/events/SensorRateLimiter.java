@@ -0,0 +1,123 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.util.Log;
+import org.mitre.svmp.protocol.SVMPProtocol.SensorEvent;
+import org.mitre.svmp.protocol.SVMPProtocol.SensorType;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decimates client sensor events to a maximum rate per sensor type, by the client's own timestamps, before
+ * they are queued for the sensor socket. An event that changes its sensor's accuracy is always let through.
+ * The configured limits can be lowered further by the rates that the apps in the VM ask for (see
+ * SensorHandler). Rates can be changed at any time; accept() and onQueued() are only called from the selector
+ * thread.
+ */
+public class SensorRateLimiter {
+    private static final String TAG = SensorRateLimiter.class.getName();
+
+    // sensor type numbers follow android.hardware.Sensor.TYPE_*; types beyond this are never limited
+    public static final int MAX_TYPES = 64;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int NO_ACCURACY = Integer.MIN_VALUE;
+
+    // the shortest gap between accepted events of each type, 0 for no limit
+    private final AtomicLongArray minIntervalNanos = new AtomicLongArray(MAX_TYPES);
+    // the configured limit and the requested rate of each type, 0 for none; guarded by "this"
+    private final int[] maxRate = new int[MAX_TYPES];
+    private final int[] demandedRate = new int[MAX_TYPES];
+    // the last queued event of each type
+    private final long[] lastTimestamp = new long[MAX_TYPES];
+    private final int[] lastAccuracy = new int[MAX_TYPES];
+
+    public SensorRateLimiter(int maxRateHz) {
+        for (int type = 0; type < MAX_TYPES; type++) {
+            setMaxRate(type, maxRateHz);
+            lastAccuracy[type] = NO_ACCURACY;
+        }
+    }
+
+    // 0 removes the limit
+    public synchronized void setMaxRate(int type, int maxRateHz) {
+        if (type >= 0 && type < MAX_TYPES) {
+            maxRate[type] = maxRateHz;
+            update(type);
+        }
+    }
+
+    // the fastest rate that is being listened to, if it is below the configured limit; 0 for no preference
+    public synchronized void setDemandedRate(int type, int rateHz) {
+        if (type >= 0 && type < MAX_TYPES) {
+            demandedRate[type] = rateHz;
+            update(type);
+        }
+    }
+
+    // must hold the lock
+    private void update(int type) {
+        int rate = maxRate[type];
+        if (demandedRate[type] > 0 && (rate == 0 || demandedRate[type] < rate))
+            rate = demandedRate[type];
+        minIntervalNanos.set(type, rate > 0 ? NANOS_PER_SECOND / rate : 0);
+    }
+
+    // parses a list of per-type rates, e.g. "ACCELEROMETER:100, GYROSCOPE:100"
+    public void setMaxRates(String rates) {
+        for (String rate : rates.split(",")) {
+            if (rate.trim().length() == 0)
+                continue;
+            String[] parts = rate.split(":");
+            try {
+                setMaxRate(SensorType.valueOf(parts[0].trim()).getNumber(), Integer.parseInt(parts[1].trim()));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Invalid sensor rate '" + rate.trim() + "'");
+            }
+        }
+    }
+
+    public int getMaxRate(int type) {
+        long interval = type >= 0 && type < MAX_TYPES ? minIntervalNanos.get(type) : 0;
+        return interval > 0 ? (int) (NANOS_PER_SECOND / interval) : 0;
+    }
+
+    // returns false if the event should be dropped; doesn't count the event until onQueued() is called
+    public boolean accept(SensorEvent event) {
+        int type = event.getType().getNumber();
+        if (type < 0 || type >= MAX_TYPES)
+            return true;
+
+        long timestamp = event.getTimestamp();
+        long interval = minIntervalNanos.get(type);
+        // allow some jitter, so a client that samples at exactly the limit isn't cut in half; a timestamp
+        // that goes backwards means the client's clock restarted
+        if (event.getAccuracy() == lastAccuracy[type] && interval > 0 && timestamp >= lastTimestamp[type]
+                && timestamp - lastTimestamp[type] < interval - interval / 8)
+            return false;
+        return true;
+    }
+
+    // called once an accepted event has made it onto the SensorRing; one that was dropped there doesn't count,
+    // so that the next event of its type still carries the accuracy change through
+    public void onQueued(SensorEvent event) {
+        int type = event.getType().getNumber();
+        if (type < 0 || type >= MAX_TYPES)
+            return;
+        lastTimestamp[type] = event.getTimestamp();
+        lastAccuracy[type] = event.getAccuracy();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.mitre.svmp.protocol.SVMPProtocol.SensorEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated single-producer/single-consumer ring of sensor events, between the selector thread
+ * that reads them and the SensorWriter thread that writes them to the sensor socket. Events are copied into
+ * primitive slot arrays, so queueing an event doesn't allocate or lock, and they come out in the order they
+ * went in.
+ *
+ * The producer fills slots with offer() and makes them visible with publish(), once per Request. The consumer
+ * busy-spins briefly when the ring is empty, then parks until the producer publishes more.
+ * The producer is the NIO selector thread, so it never waits: an event that arrives when the ring is full is
+ * dropped and counted.
+ */
+public class SensorRing {
+    // sensor events carry up to three values
+    public static final int VALUES = 3;
+    private static final int SPIN_TRIES = 200;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] types;
+    private final int[] accuracies;
+    private final long[] timestamps;
+    private final float[] values;
+    private final long[] queuedNanos;
+    private final long[] arrivedNanos;
+
+    // the next slot to read, and the next slot to write; each is only advanced by its own side
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // the producer's slots that haven't been published yet
+    private long pendingTail = 0;
+    // the consumer, when it is parked or about to be
+    private volatile Thread waiter = null;
+
+    private volatile int highWater = 0;
+    private final AtomicLong overflows = new AtomicLong();
+
+    // the capacity is rounded up to a power of two
+    public SensorRing(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        types = new int[size];
+        accuracies = new int[size];
+        timestamps = new long[size];
+        values = new float[size * VALUES];
+        queuedNanos = new long[size];
+        arrivedNanos = new long[size];
+    }
+
+    // producer: copies an event into the next slot, with the elapsed realtime its Request arrived at; returns
+    // false if it was dropped
+    public boolean offer(SensorEvent event, long arrivedElapsedNanos) {
+        if (pendingTail - head.get() >= capacity) {
+            overflows.incrementAndGet();
+            return false;
+        }
+
+        int slot = (int) pendingTail & mask;
+        types[slot] = event.getType().getNumber();
+        accuracies[slot] = event.getAccuracy();
+        timestamps[slot] = event.getTimestamp();
+        int count = Math.min(event.getValuesCount(), VALUES);
+        for (int j = 0; j < VALUES; j++)
+            values[slot * VALUES + j] = j < count ? event.getValues(j) : 0f;
+        queuedNanos[slot] = System.nanoTime();
+        arrivedNanos[slot] = arrivedElapsedNanos;
+        pendingTail++;
+        return true;
+    }
+
+    // producer: makes the offered events visible to the consumer, and wakes it if needed
+    public void publish() {
+        if (pendingTail == tail.get())
+            return;
+        // a volatile write, so the read of "waiter" below can't move ahead of it
+        tail.set(pendingTail);
+        int size = (int) (pendingTail - head.get());
+        if (size > highWater)
+            highWater = size;
+        Thread consumer = waiter;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    // consumer: waits for at least one event; returns the number available
+    public int await() throws InterruptedException {
+        return await(0);
+    }
+
+    // consumer: as await(), but gives up after "timeoutNanos" (0 for never) and returns 0
+    public int await(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        long start = head.get();
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            long available = tail.get() - start;
+            if (available > 0)
+                return (int) available;
+        }
+        waiter = Thread.currentThread();
+        try {
+            while (true) {
+                // re-check after announcing ourselves, the producer may have published in between
+                long available = tail.get() - start;
+                if (available > 0)
+                    return (int) available;
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (timeoutNanos <= 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return 0;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // consumer: the fields of the index'th available event
+    public int getType(int index) {
+        return types[slot(index)];
+    }
+
+    public int getAccuracy(int index) {
+        return accuracies[slot(index)];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[slot(index)];
+    }
+
+    public float getValue(int index, int value) {
+        return values[slot(index) * VALUES + value];
+    }
+
+    public long getQueuedNanos(int index) {
+        return queuedNanos[slot(index)];
+    }
+
+    // SystemClock.elapsedRealtimeNanos() when the event arrived
+    public long getArrivedNanos(int index) {
+        return arrivedNanos[slot(index)];
+    }
+
+    // consumer: frees the oldest "count" events
+    public void release(int count) {
+        head.lazySet(head.get() + count);
+    }
+
+    private int slot(int index) {
+        return (int) (head.get() + index) & mask;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // the most events that have been waiting at once
+    public int getHighWater() {
+        return highWater;
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+}
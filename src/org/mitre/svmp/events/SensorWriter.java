@@ -0,0 +1,198 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.util.Log;
+import org.mitre.svmp.events.metrics.Metrics;
+
+/**
+ * Dedicated thread that takes sensor events off the SensorRing, in order, and writes them to the sensor
+ * socket. Everything that is waiting when it wakes up goes out as one batch (up to MAX_BATCH events), so
+ * it writes less often as the client sends faster.
+ *
+ * If coalescing is on and the writer has fallen behind, a batch only carries the newest sample of each
+ * sensor type: the samples superseded while it was busy are dropped instead of delivered late. The writer is
+ * behind when the oldest waiting event has waited longer than the coalescing threshold, or when the socket
+ * didn't take all of the last batch. Otherwise every sample is written.
+ *
+ * A sample that changes its sensor's accuracy is always delivered. The socket takes a batch from the front,
+ * so an accuracy change that didn't fit is held and goes first in the next batch; if the ring has nothing
+ * new, it is retried after HELD_RETRY_MILLIS. Only the newest held change of each type is kept.
+ */
+public class SensorWriter extends Thread {
+    private static final String TAG = SensorWriter.class.getName();
+
+    private static final int MAX_BATCH = 256;
+    private static final int NO_ACCURACY = Integer.MIN_VALUE;
+    private static final long HELD_RETRY_MILLIS = 10;
+
+    private final BaseServer server;
+    private final SensorRing ring;
+    private final SensorBatchEncoder encoder;
+    private final Metrics metrics;
+    private final boolean coalesce;
+    private final long coalesceNanos;
+    // true if the socket didn't take all of the last batch
+    private boolean socketFull = false;
+    // the events of the current batch that are written, by their index on the ring
+    private final int[] batch = new int[MAX_BATCH];
+    // the newest sample of each type in the current batch
+    private final int[] newest = new int[SensorRateLimiter.MAX_TYPES];
+    // the accuracy last delivered for each type, and a scratch copy for working through a batch
+    private final int[] lastAccuracy = new int[SensorRateLimiter.MAX_TYPES];
+    private final int[] accuracy = new int[SensorRateLimiter.MAX_TYPES];
+    // accuracy changes that the socket didn't take, by type; NO_ACCURACY if none is held
+    private final int[] heldAccuracy = new int[SensorRateLimiter.MAX_TYPES];
+    private final long[] heldTimestamp = new long[SensorRateLimiter.MAX_TYPES];
+    private final float[] heldValues = new float[SensorRateLimiter.MAX_TYPES * SensorRing.VALUES];
+    private int heldCount = 0;
+    private volatile long written = 0;
+
+    public SensorWriter(BaseServer server, SensorRing ring, SensorBatchEncoder encoder, Metrics metrics,
+                        boolean coalesce, long coalesceMillis) {
+        super("SensorWriter");
+        this.server = server;
+        this.ring = ring;
+        this.encoder = encoder;
+        this.metrics = metrics;
+        this.coalesce = coalesce;
+        this.coalesceNanos = coalesceMillis * 1000000L;
+        for (int type = 0; type < lastAccuracy.length; type++) {
+            lastAccuracy[type] = NO_ACCURACY;
+            heldAccuracy[type] = NO_ACCURACY;
+        }
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (!isInterrupted()) {
+            int count;
+            try {
+                // don't wait for new events forever while accuracy changes are held back
+                count = Math.min(ring.await(heldCount > 0 ? HELD_RETRY_MILLIS * 1000000L : 0), MAX_BATCH);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            for (int i = 0; i < count; i++)
+                metrics.getSensorQueueNanos().recordSince(ring.getQueuedNanos(i));
+            boolean behind = count > 0
+                    && (socketFull || System.nanoTime() - ring.getQueuedNanos(0) > coalesceNanos);
+            int kept = select(count, coalesce && behind);
+            if (kept < count)
+                metrics.getSensorsCoalesced().add(count - kept);
+            try {
+                // encode the held changes and the batch, and send them to the Unix socket
+                int total = encode(kept);
+                int sent = server.sendSensorBatch(encoder.getBuffer(), total);
+                socketFull = sent < total;
+                settle(sent, total);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error writing sensor events: " + e.getMessage());
+            } finally {
+                // the events have been copied out, so their slots can be reused
+                ring.release(count);
+            }
+            written += count;
+        }
+    }
+
+    // picks which of the oldest "count" events on the ring to write; returns how many, in order, in "batch"
+    private int select(int count, boolean coalesce) {
+        if (!coalesce) {
+            for (int i = 0; i < count; i++)
+                batch[i] = i;
+            return count;
+        }
+
+        // the held changes go out first, so the batch's accuracy changes are relative to them
+        System.arraycopy(lastAccuracy, 0, accuracy, 0, accuracy.length);
+        if (heldCount > 0) {
+            for (int type = 0; type < heldAccuracy.length; type++) {
+                if (heldAccuracy[type] != NO_ACCURACY)
+                    accuracy[type] = heldAccuracy[type];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int type = ring.getType(i);
+            if (type >= 0 && type < newest.length)
+                newest[type] = i;
+        }
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int type = ring.getType(i);
+            if (type < 0 || type >= newest.length) {
+                batch[kept++] = i;
+            } else if (newest[type] == i || ring.getAccuracy(i) != accuracy[type]) {
+                batch[kept++] = i;
+                accuracy[type] = ring.getAccuracy(i);
+            }
+        }
+        return kept;
+    }
+
+    // encodes the held changes followed by the selected events; returns the number of records
+    private int encode(int kept) {
+        encoder.begin(heldCount + kept);
+        if (heldCount > 0) {
+            for (int type = 0; type < heldAccuracy.length; type++) {
+                if (heldAccuracy[type] != NO_ACCURACY)
+                    encoder.put(type, heldAccuracy[type], heldTimestamp[type], heldValues,
+                            type * SensorRing.VALUES);
+            }
+        }
+        for (int n = 0; n < kept; n++)
+            encoder.put(ring, batch[n]);
+        encoder.finish();
+        return heldCount + kept;
+    }
+
+    // the socket took the first "sent" of the "total" records; only those count as delivered, and the
+    // accuracy changes among the rest are held for the next batch
+    private void settle(int sent, int total) {
+        for (int n = 0; n < sent; n++) {
+            int type = encoder.getType(n);
+            if (type >= 0 && type < lastAccuracy.length)
+                lastAccuracy[type] = encoder.getAccuracy(n);
+        }
+        if (heldCount > 0) {
+            for (int type = 0; type < heldAccuracy.length; type++)
+                heldAccuracy[type] = NO_ACCURACY;
+            heldCount = 0;
+        }
+        if (sent == total)
+            return;
+
+        System.arraycopy(lastAccuracy, 0, accuracy, 0, accuracy.length);
+        for (int n = sent; n < total; n++) {
+            int type = encoder.getType(n);
+            if (type < 0 || type >= accuracy.length || encoder.getAccuracy(n) == accuracy[type])
+                continue;
+            accuracy[type] = encoder.getAccuracy(n);
+            if (heldAccuracy[type] == NO_ACCURACY)
+                heldCount++;
+            heldAccuracy[type] = accuracy[type];
+            heldTimestamp[type] = encoder.getTimestamp(n);
+            for (int j = 0; j < SensorRing.VALUES; j++)
+                heldValues[type * SensorRing.VALUES + j] = encoder.getValue(n, j);
+        }
+    }
+
+    // the number of events taken off the ring, whether or not the socket accepted them
+    public long getWritten() {
+        return written;
+    }
+}
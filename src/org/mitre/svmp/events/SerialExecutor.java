@@ -0,0 +1,131 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs tasks one at a time, in submission order, on top of another Executor.
+ * Several SerialExecutors can share one thread pool and still keep their own tasks ordered; a lane on a
+ * shared pool runs a few tasks at a time and then gives its thread back, so the other lanes get a turn.
+ * A SerialExecutor can also have a thread of its own, which takes tasks straight off the queue.
+ * Tasks are queued as they are, without wrapping them, so executing one doesn't allocate.
+ */
+public class SerialExecutor implements Executor {
+    private static final String TAG = SerialExecutor.class.getName();
+
+    // the most tasks a lane runs on a shared pool thread before it is rescheduled
+    private static final int MAX_BATCH = 16;
+
+    private final String name;
+    // null if the lane has its own thread
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    // true while the drainer is scheduled or running on the shared pool
+    private boolean active = false;
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public SerialExecutor(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    // a lane with its own thread, made by "threadFactory"
+    public SerialExecutor(String name, ThreadFactory threadFactory) {
+        this.name = name;
+        this.executor = null;
+        Thread thread = threadFactory.newThread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        });
+        thread.start();
+    }
+
+    public synchronized void execute(Runnable task) {
+        tasks.add(task);
+        if (executor == null) {
+            notify();
+        } else if (!active) {
+            active = true;
+            executor.execute(drainer);
+        }
+    }
+
+    // runs on the shared pool
+    private void drain() {
+        for (int i = 0; i < MAX_BATCH; i++) {
+            Runnable task;
+            synchronized (this) {
+                if ((task = tasks.poll()) == null) {
+                    active = false;
+                    return;
+                }
+            }
+            runTask(task);
+        }
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                active = false;
+                return;
+            }
+        }
+        executor.execute(drainer);
+    }
+
+    // runs on the lane's own thread
+    private void loop() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                try {
+                    while (tasks.isEmpty())
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task = tasks.poll();
+            }
+            runTask(task);
+        }
+    }
+
+    // one task's failure mustn't stop the ones behind it
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error running task on lane " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // number of tasks waiting behind the one that is running
+    public synchronized int getDepth() {
+        return tasks.size();
+    }
+}
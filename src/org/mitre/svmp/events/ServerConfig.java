@@ -0,0 +1,85 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Typed access to the event server options in the "config.properties" asset.
+ * Missing or unparseable values fall back to the supplied default.
+ */
+public class ServerConfig {
+    private static final String TAG = ServerConfig.class.getName();
+
+    private Properties properties;
+
+    public ServerConfig(Context context) {
+        properties = new Properties();
+
+        try {
+            InputStream inputStream = context.getAssets().open("config.properties");
+            properties.load(inputStream);
+            inputStream.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't load properties file: " + e.getMessage());
+        }
+    }
+
+    public String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue).trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Couldn't parse value of '" + key + "': " + e.getMessage());
+            }
+        }
+        return defaultValue;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null)
+            return defaultValue;
+        return value.trim().equals("true");
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> enumClass, E defaultValue) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                return Enum.valueOf(enumClass, value.trim());
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid value of '" + key + "': " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    // used for diagnostics output
+    public Properties getProperties() {
+        return properties;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import org.mitre.svmp.protocol.SVMPProtocol.TouchEvent;
+
+import java.util.Arrays;
+
+/**
+ * One TouchEvent, held in primitive arrays that are reused from one event to the next, so that the touch
+ * path doesn't build a protobuf object graph for every message. The accessors follow the generated
+ * TouchEvent's. Filled in either by the TouchEventDecoder, straight from the wire, or from a parsed
+ * TouchEvent. Not thread safe.
+ */
+public class TouchFrame {
+    private static final int INITIAL_POINTERS = 4;
+    private static final int INITIAL_HISTORY = 8;
+
+    private int action;
+    private boolean hasDownTime;
+    private long downTime;
+    private boolean hasEventTime;
+    private long eventTime;
+    private boolean hasEdgeFlags;
+    private int edgeFlags;
+
+    private int pointerCount;
+    private int[] ids = new int[INITIAL_POINTERS];
+    private float[] xs = new float[INITIAL_POINTERS];
+    private float[] ys = new float[INITIAL_POINTERS];
+
+    // the coordinates of all historical samples are packed into one pair of arrays, sample h has
+    // historyCoordsCount[h] of them starting at historyCoordsStart[h]
+    private int historicalCount;
+    private long[] historyTimes = new long[INITIAL_HISTORY];
+    private int[] historyCoordsStart = new int[INITIAL_HISTORY];
+    private int[] historyCoordsCount = new int[INITIAL_HISTORY];
+    private int historyCoords;
+    private float[] historyXs = new float[INITIAL_HISTORY * INITIAL_POINTERS];
+    private float[] historyYs = new float[INITIAL_HISTORY * INITIAL_POINTERS];
+
+    void clear() {
+        action = 0;
+        hasDownTime = hasEventTime = hasEdgeFlags = false;
+        downTime = eventTime = 0;
+        edgeFlags = 0;
+        pointerCount = 0;
+        historicalCount = 0;
+        historyCoords = 0;
+    }
+
+    // copies a parsed TouchEvent, for Requests that didn't go through the decoder
+    void set(TouchEvent event) {
+        clear();
+        setAction(event.getAction());
+        if (event.hasDownTime())
+            setDownTime(event.getDownTime());
+        if (event.hasEventTime())
+            setEventTime(event.getEventTime());
+        if (event.hasEdgeFlags())
+            setEdgeFlags(event.getEdgeFlags());
+        for (int i = 0; i < event.getItemsCount(); i++) {
+            TouchEvent.PointerCard item = event.getItems(i);
+            addPointer(item.getId(), item.getX(), item.getY());
+        }
+        for (int h = 0; h < event.getHistoricalCount(); h++) {
+            TouchEvent.HistoricalEvent historical = event.getHistorical(h);
+            startHistorical();
+            setHistoricalEventTime(historical.getEventTime());
+            for (int j = 0; j < historical.getCoordsCount(); j++)
+                addHistoricalCoords(historical.getCoords(j).getX(), historical.getCoords(j).getY());
+        }
+    }
+
+    void setAction(int action) {
+        this.action = action;
+    }
+
+    void setDownTime(long downTime) {
+        this.downTime = downTime;
+        hasDownTime = true;
+    }
+
+    void setEventTime(long eventTime) {
+        this.eventTime = eventTime;
+        hasEventTime = true;
+    }
+
+    void setEdgeFlags(int edgeFlags) {
+        this.edgeFlags = edgeFlags;
+        hasEdgeFlags = true;
+    }
+
+    void addPointer(int id, float x, float y) {
+        if (pointerCount == ids.length) {
+            int size = ids.length * 2;
+            ids = Arrays.copyOf(ids, size);
+            xs = Arrays.copyOf(xs, size);
+            ys = Arrays.copyOf(ys, size);
+        }
+        ids[pointerCount] = id;
+        xs[pointerCount] = x;
+        ys[pointerCount] = y;
+        pointerCount++;
+    }
+
+    // begins a historical sample; its time and coordinates are added next
+    void startHistorical() {
+        if (historicalCount == historyTimes.length) {
+            int size = historyTimes.length * 2;
+            historyTimes = Arrays.copyOf(historyTimes, size);
+            historyCoordsStart = Arrays.copyOf(historyCoordsStart, size);
+            historyCoordsCount = Arrays.copyOf(historyCoordsCount, size);
+        }
+        historyTimes[historicalCount] = 0;
+        historyCoordsStart[historicalCount] = historyCoords;
+        historyCoordsCount[historicalCount] = 0;
+        historicalCount++;
+    }
+
+    void setHistoricalEventTime(long eventTime) {
+        historyTimes[historicalCount - 1] = eventTime;
+    }
+
+    void addHistoricalCoords(float x, float y) {
+        if (historyCoords == historyXs.length) {
+            historyXs = Arrays.copyOf(historyXs, historyXs.length * 2);
+            historyYs = Arrays.copyOf(historyYs, historyYs.length * 2);
+        }
+        historyXs[historyCoords] = x;
+        historyYs[historyCoords] = y;
+        historyCoords++;
+        historyCoordsCount[historicalCount - 1]++;
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    public boolean hasDownTime() {
+        return hasDownTime;
+    }
+
+    public long getDownTime() {
+        return downTime;
+    }
+
+    public boolean hasEventTime() {
+        return hasEventTime;
+    }
+
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    public boolean hasEdgeFlags() {
+        return hasEdgeFlags;
+    }
+
+    public int getEdgeFlags() {
+        return edgeFlags;
+    }
+
+    public int getPointerCount() {
+        return pointerCount;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public float getX(int index) {
+        return xs[index];
+    }
+
+    public float getY(int index) {
+        return ys[index];
+    }
+
+    public int getHistoricalCount() {
+        return historicalCount;
+    }
+
+    public long getHistoricalEventTime(int h) {
+        return historyTimes[h];
+    }
+
+    public int getHistoricalCoordsCount(int h) {
+        return historyCoordsCount[h];
+    }
+
+    public float getHistoricalX(int h, int index) {
+        return historyXs[historyCoordsStart[h] + index];
+    }
+
+    public float getHistoricalY(int h, int index) {
+        return historyYs[historyCoordsStart[h] + index];
+    }
+}
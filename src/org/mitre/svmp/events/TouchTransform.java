@@ -0,0 +1,93 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.view.MotionEvent;
+import android.view.Surface;
+
+/**
+ * Maps client touch coordinates to screen coordinates, in the current orientation of the display (the
+ * coordinates that MotionEvents are injected with):
+ *   x' = a * x + b * y + tx
+ *   y' = c * x + d * y + ty
+ * The client's coordinates, and its viewport, are always in the natural orientation of the display, the one
+ * the screen size in SCREENINFO is given in. The matrix combines the scale from the viewport to that screen
+ * size with the display rotation, so that clients can send touch at their own, possibly lower, resolution.
+ * Instances are immutable, one is built per (rotation, viewport).
+ */
+public class TouchTransform {
+    private final int rotation;
+    private final int viewportWidth;
+    private final int viewportHeight;
+    private final float a, b, c, d, tx, ty;
+
+    // the screen size is in the natural orientation; a viewport of 0x0 means the client sends screen coordinates
+    public TouchTransform(int rotation, int screenWidth, int screenHeight, int viewportWidth, int viewportHeight) {
+        this.rotation = rotation;
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+
+        // the scale to natural screen coordinates, which the offsets below are in too
+        float sx = 1f, sy = 1f;
+        if (viewportWidth > 0 && viewportHeight > 0) {
+            sx = (float) screenWidth / viewportWidth;
+            sy = (float) screenHeight / viewportHeight;
+        }
+
+        // Client origin is the top left of the physical phone's screen in the natural upright position
+        switch (rotation) {
+            case Surface.ROTATION_180:
+                // screen turned left 180
+                // client origin is now in bottom right
+                // invert both
+                a = -sx; b = 0; tx = screenWidth;
+                c = 0; d = -sy; ty = screenHeight;
+                break;
+            case Surface.ROTATION_90:
+                // screen turned left 90
+                // client origin is now in bottom left
+                // switch, invert client x
+                a = 0; b = sy; tx = 0;
+                c = -sx; d = 0; ty = screenWidth;
+                break;
+            case Surface.ROTATION_270:
+                // screen turned right 90
+                // client origin is now in top right
+                // switch, invert client y
+                a = 0; b = -sy; tx = screenHeight;
+                c = sx; d = 0; ty = 0;
+                break;
+            default:
+                a = sx; b = 0; tx = 0;
+                c = 0; d = sy; ty = 0;
+                break;
+        }
+    }
+
+    public boolean matches(int rotation, int viewportWidth, int viewportHeight) {
+        return this.rotation == rotation && this.viewportWidth == viewportWidth
+                && this.viewportHeight == viewportHeight;
+    }
+
+    // fills in "coords" in place
+    public void apply(float x, float y, MotionEvent.PointerCoords coords) {
+        coords.clear();
+        coords.x = a * x + b * y + tx;
+        coords.y = c * x + d * y + ty;
+        coords.pressure = 1f;
+        coords.size = 5f;
+    }
+}
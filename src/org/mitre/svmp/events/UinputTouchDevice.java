@@ -0,0 +1,215 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events;
+
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.Surface;
+
+/**
+ * A virtual multitouch screen created through /dev/uinput, an optional alternative to injecting touch
+ * events through the InputManager. Events written here go through the kernel and the input reader like a
+ * real touchscreen's, with no Binder call or permission check per event.
+ *
+ * Each MotionEvent becomes one evdev multitouch protocol B frame: the slot is the pointer id, and a contact
+ * gets a new tracking id when it goes down. The device reports in the natural orientation of the display,
+ * and the input reader rotates that the same way it would for a built-in touchscreen, so MotionEvent
+ * coordinates are mapped back through the current rotation here.
+ * The kernel stamps events with the time they are written, so the MotionEvent's event time and historical
+ * samples are not used; only the latest sample of a MOVE is written.
+ * Only used from the InputInjector thread, apart from setRotation().
+ */
+public class UinputTouchDevice {
+    private static final String TAG = UinputTouchDevice.class.getName();
+
+    // the most pointers the device tracks at once; pointer ids at or above this can't be written
+    private static final int MAX_SLOTS = 16;
+    private static final int MAX_TRACKING_ID = 0xffff;
+
+    // from linux/input.h
+    private static final int EV_SYN = 0x00;
+    private static final int EV_KEY = 0x01;
+    private static final int EV_ABS = 0x03;
+    private static final int SYN_REPORT = 0;
+    private static final int BTN_TOUCH = 0x14a;
+    private static final int ABS_MT_SLOT = 0x2f;
+    private static final int ABS_MT_POSITION_X = 0x35;
+    private static final int ABS_MT_POSITION_Y = 0x36;
+    private static final int ABS_MT_TRACKING_ID = 0x39;
+
+    private final int fd;
+    // the size of the display in its natural orientation
+    private final int width;
+    private final int height;
+    private volatile int rotation = Surface.ROTATION_0;
+
+    // the tracking id of the contact in each slot, -1 if the slot is free
+    private final int[] trackingIds = new int[MAX_SLOTS];
+    private int nextTrackingId = 0;
+    private boolean touching = false;
+    private boolean open = true;
+
+    // (type, code, value) triples of the frame being built; a slot takes at most four events to update and
+    // two more to release, plus BTN_TOUCH and SYN_REPORT
+    private final int[] frame = new int[(MAX_SLOTS * 6 + 2) * 3];
+    private int frameEvents = 0;
+
+    private static native int nativeOpen(String name, int width, int height, int slots);
+    private static native int nativeWrite(int fd, int[] triples, int count);
+    private static native int nativeClose(int fd);
+
+    private UinputTouchDevice(int fd, int width, int height) {
+        this.fd = fd;
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < MAX_SLOTS; i++)
+            trackingIds[i] = -1;
+    }
+
+    // creates the device, with the natural size of the display; returns null if uinput isn't available
+    public static UinputTouchDevice open(String name, int width, int height) {
+        int fd = nativeOpen(name, width, height, MAX_SLOTS);
+        if (fd < 0) {
+            Log.e(TAG, "Error creating uinput touch device (errno " + -fd + "), falling back to InputManager");
+            return null;
+        }
+        Log.d(TAG, "Created uinput touch device '" + name + "': " + width + "x" + height);
+        return new UinputTouchDevice(fd, width, height);
+    }
+
+    // the current display rotation, which MotionEvent coordinates are in
+    public void setRotation(int rotation) {
+        this.rotation = rotation;
+    }
+
+    // false once a write has failed and the device has been closed
+    public boolean isOpen() {
+        return open;
+    }
+
+    // writes a touchscreen MotionEvent; returns false if it couldn't be written, and the caller should use
+    // another way of injecting it
+    public boolean write(MotionEvent event) {
+        if (!open)
+            return false;
+        int action = event.getActionMasked();
+        int actionIndex = event.getActionIndex();
+        int pointers = event.getPointerCount();
+        for (int i = 0; i < pointers; i++) {
+            if (event.getPointerId(i) >= MAX_SLOTS)
+                return false;
+        }
+
+        // a new gesture; if the end of the last one was lost, lift its contacts first
+        if (action == MotionEvent.ACTION_DOWN && touching) {
+            frameEvents = 0;
+            for (int slot = 0; slot < MAX_SLOTS; slot++)
+                release(slot);
+            if (!flush())
+                return false;
+        }
+
+        frameEvents = 0;
+        int rotation = this.rotation;
+        for (int i = 0; i < pointers; i++) {
+            int slot = event.getPointerId(i);
+            boolean lifted = action == MotionEvent.ACTION_CANCEL || (i == actionIndex
+                    && (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_POINTER_UP));
+            if (lifted) {
+                release(slot);
+                continue;
+            }
+
+            add(EV_ABS, ABS_MT_SLOT, slot);
+            if (trackingIds[slot] < 0) {
+                trackingIds[slot] = nextTrackingId;
+                nextTrackingId = (nextTrackingId + 1) & MAX_TRACKING_ID;
+                add(EV_ABS, ABS_MT_TRACKING_ID, trackingIds[slot]);
+            }
+            // unchanged positions are filtered out by the kernel
+            int x = Math.round(event.getX(i)), y = Math.round(event.getY(i));
+            switch (rotation) {
+                case Surface.ROTATION_90:
+                    add(EV_ABS, ABS_MT_POSITION_X, width - 1 - y);
+                    add(EV_ABS, ABS_MT_POSITION_Y, x);
+                    break;
+                case Surface.ROTATION_180:
+                    add(EV_ABS, ABS_MT_POSITION_X, width - 1 - x);
+                    add(EV_ABS, ABS_MT_POSITION_Y, height - 1 - y);
+                    break;
+                case Surface.ROTATION_270:
+                    add(EV_ABS, ABS_MT_POSITION_X, y);
+                    add(EV_ABS, ABS_MT_POSITION_Y, height - 1 - x);
+                    break;
+                default:
+                    add(EV_ABS, ABS_MT_POSITION_X, x);
+                    add(EV_ABS, ABS_MT_POSITION_Y, y);
+                    break;
+            }
+        }
+        // an UP or CANCEL ends the gesture even if the client's pointers didn't add up
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            for (int slot = 0; slot < MAX_SLOTS; slot++)
+                release(slot);
+        }
+        return flush();
+    }
+
+    public void close() {
+        if (open) {
+            open = false;
+            nativeClose(fd);
+        }
+    }
+
+    private void release(int slot) {
+        if (trackingIds[slot] >= 0) {
+            add(EV_ABS, ABS_MT_SLOT, slot);
+            add(EV_ABS, ABS_MT_TRACKING_ID, -1);
+            trackingIds[slot] = -1;
+        }
+    }
+
+    private void add(int type, int code, int value) {
+        int index = frameEvents * 3;
+        frame[index] = type;
+        frame[index + 1] = code;
+        frame[index + 2] = value;
+        frameEvents++;
+    }
+
+    // ends the frame and writes it
+    private boolean flush() {
+        boolean contacts = false;
+        for (int slot = 0; slot < MAX_SLOTS && !contacts; slot++)
+            contacts = trackingIds[slot] >= 0;
+        if (contacts != touching) {
+            add(EV_KEY, BTN_TOUCH, contacts ? 1 : 0);
+            touching = contacts;
+        }
+        add(EV_SYN, SYN_REPORT, 0);
+
+        int result = nativeWrite(fd, frame, frameEvents);
+        frameEvents = 0;
+        if (result < 0) {
+            // the device is gone or broken, don't keep trying it for every event
+            Log.e(TAG, "Error writing to uinput touch device (errno " + -result + "), closing it");
+            close();
+            return false;
+        }
+        return true;
+    }
+}
@@ -21,10 +21,8 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.location.Location;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.util.Log;
 import org.mitre.svmp.protocol.SVMPProtocol.*;
-import org.mitre.svmp.protocol.SVMPSensorEventMessage;
 
 import java.io.ByteArrayOutputStream;
 
@@ -71,22 +69,7 @@ public class Utility {
         return value;
     }
 
-    // converts SensorEvent Protobuf to SVMPSensorEventMessage that can be written directly to the sensor Unix socket
-    public static SVMPSensorEventMessage toSVMPMessage(SensorEvent sensorEvent) {
-        // get values
-        int type = sensorEvent.getType().getNumber();
-        int accuracy = sensorEvent.getAccuracy();
-        long timestamp = sensorEvent.getTimestamp();
-        float[] values = new float[sensorEvent.getValuesCount()];
-        for (int i = 0; i < values.length; i++) {
-            values[i] = sensorEvent.getValues(i);
-        }
-
-        // generate and return the SVMPSensorEventMessage
-        return new SVMPSensorEventMessage(type, accuracy, timestamp, values);
-    }
-
-    public static Location getLocation(LocationUpdate locationUpdate) {
+    public static Location getLocation(LocationUpdate locationUpdate, ClockSync clockSync) {
         Location location = null;
 
         try {
@@ -96,7 +79,8 @@ public class Utility {
             location.setLatitude(locationUpdate.getLatitude());
             location.setLongitude(locationUpdate.getLongitude());
             location.setTime(locationUpdate.getTime());
-            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+            // when the fix was taken, on our clock, rather than when it got here
+            location.setElapsedRealtimeNanos(clockSync.toLocalElapsedNanos(locationUpdate.getTime()));
 
             // get optional fields
             if( locationUpdate.hasAccuracy() )
@@ -72,6 +72,8 @@ public class WebrtcHandler {
     private final PCObserver pcObserver = new PCObserver();
     private final SDPObserver sdpObserver = new SDPObserver();
     private MediaConstraints sdpMediaConstraints;
+    private volatile PeerConnection.IceConnectionState iceConnectionState =
+            PeerConnection.IceConnectionState.NEW;
 
     private LinkedList<IceCandidate> queuedRemoteCandidates =
             new LinkedList<IceCandidate>();
@@ -354,6 +356,8 @@ public class WebrtcHandler {
 
         @Override
         public void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
+            Log.d(TAG, "ICE connection state: " + newState);
+            iceConnectionState = newState;
         }
 
         @Override
@@ -526,6 +530,18 @@ public class WebrtcHandler {
         }
     }
 
+    // True if the video stream is still flowing; a client session can only be resumed while it is, otherwise
+    // the client has to negotiate a new PeerConnection.
+    public boolean isConnected() {
+        PeerConnection.IceConnectionState state = iceConnectionState;
+        return state == PeerConnection.IceConnectionState.CONNECTED
+                || state == PeerConnection.IceConnectionState.COMPLETED;
+    }
+
+    public PeerConnection.IceConnectionState getIceConnectionState() {
+        return iceConnectionState;
+    }
+
     // Disconnect from remote resources, dispose of local resources, and exit.
     public void disconnectAndExit() {
         synchronized (quit[0]) {
@@ -549,6 +565,7 @@ public class WebrtcHandler {
                 factory = null;
             }
             quit[0] = false;
+            iceConnectionState = PeerConnection.IceConnectionState.NEW;
             Log.d(TAG, "Creating new ICE Candidate list");
             queuedRemoteCandidates = new LinkedList<IceCandidate>();
             Log.d(TAG, "Running onIceServers");
@@ -0,0 +1,84 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events.metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a snapshot in a compact binary form, for tools that poll it.
+ *
+ * The stream starts with the magic "SVMD" and a version byte, followed by records that each start with a
+ * tag byte. Strings are in DataOutput "modified UTF-8", numbers are big-endian longs, times are nanoseconds.
+ *   1 section   name
+ *   2 counter   name, value
+ *   3 histogram name, count, mean, p50, p99, max
+ *   4 text      name, value
+ *   0 end
+ */
+public class BinarySnapshotWriter implements SnapshotWriter {
+    public static final int VERSION = 1;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_SECTION = 1;
+    private static final int TAG_COUNTER = 2;
+    private static final int TAG_HISTOGRAM = 3;
+    private static final int TAG_TEXT = 4;
+    // writeUTF() can't encode more than 64KB
+    private static final int MAX_TEXT_LENGTH = 16 * 1024;
+
+    private final DataOutputStream out;
+
+    public BinarySnapshotWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeBytes("SVMD");
+        this.out.writeByte(VERSION);
+    }
+
+    public void section(String name) throws IOException {
+        out.writeByte(TAG_SECTION);
+        out.writeUTF(name);
+    }
+
+    public void counter(String name, long value) throws IOException {
+        out.writeByte(TAG_COUNTER);
+        out.writeUTF(name);
+        out.writeLong(value);
+    }
+
+    public void histogram(String name, Histogram histogram) throws IOException {
+        out.writeByte(TAG_HISTOGRAM);
+        out.writeUTF(name);
+        out.writeLong(histogram.getCount());
+        out.writeLong(histogram.getMean());
+        out.writeLong(histogram.getPercentile(50));
+        out.writeLong(histogram.getPercentile(99));
+        out.writeLong(histogram.getMax());
+    }
+
+    public void text(String name, String value) throws IOException {
+        out.writeByte(TAG_TEXT);
+        out.writeUTF(name);
+        out.writeUTF(value.length() > MAX_TEXT_LENGTH ? value.substring(0, MAX_TEXT_LENGTH) : value);
+    }
+
+    public void finish() throws IOException {
+        out.writeByte(TAG_END);
+        out.flush();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events.metrics;
+
+import org.mitre.svmp.protocol.SVMPProtocol.Request.RequestType;
+import org.mitre.svmp.protocol.SVMPProtocol.Response.ResponseType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server's performance counters. Every counter and histogram is created up front, so recording is just
+ * a map lookup and a few atomic adds; nothing allocates or locks, and it can be left on in production.
+ * Times are in nanoseconds.
+ */
+public class Metrics {
+    private final Map<RequestType, StripedCounter> inboundMessages =
+            new EnumMap<RequestType, StripedCounter>(RequestType.class);
+    private final Map<RequestType, Histogram> handlerNanos = new EnumMap<RequestType, Histogram>(RequestType.class);
+    private final Map<ResponseType, StripedCounter> outboundMessages =
+            new EnumMap<ResponseType, StripedCounter>(ResponseType.class);
+    private final Map<ResponseType, StripedCounter> outboundBytes =
+            new EnumMap<ResponseType, StripedCounter>(ResponseType.class);
+    // the time a sensor event waits between arriving and being written to the sensor socket
+    private final Histogram sensorQueueNanos = new Histogram();
+    // sensor events dropped for exceeding their type's rate limit, or superseded by a newer sample
+    private final StripedCounter sensorsRateLimited = new StripedCounter();
+    private final StripedCounter sensorsCoalesced = new StripedCounter();
+    // the time it takes to decode a TOUCHEVENT frame without the generated parser, and the frames it gave up on
+    private final Histogram touchDecodeNanos = new Histogram();
+    private final StripedCounter touchDecodeFallbacks = new StripedCounter();
+    // the time it takes to translate a touch event into a MotionEvent
+    private final Histogram touchBuildNanos = new Histogram();
+    // the time an input event waits for the injector thread, and the time InputManager takes to accept it
+    private final Histogram inputQueueNanos = new Histogram();
+    private final Histogram injectNanos = new Histogram();
+    private final StripedCounter injectFailures = new StripedCounter();
+    // MOVE events that were folded into the one queued ahead of them because the injector was behind
+    private final StripedCounter coalescedMoves = new StripedCounter();
+    // how old touch events are when they are injected, by their (client) event time mapped onto our clock
+    private final Histogram inputAgeNanos = new Histogram();
+    // MOVE events older than the latency budget that were dropped, or folded into the MOVEs queued behind them
+    private final StripedCounter staleMovesDropped = new StripedCounter();
+    private final StripedCounter staleMovesFolded = new StripedCounter();
+
+    public Metrics() {
+        for (RequestType type : RequestType.values()) {
+            inboundMessages.put(type, new StripedCounter());
+            handlerNanos.put(type, new Histogram());
+        }
+        for (ResponseType type : ResponseType.values()) {
+            outboundMessages.put(type, new StripedCounter());
+            outboundBytes.put(type, new StripedCounter());
+        }
+    }
+
+    public void recordInbound(RequestType type) {
+        inboundMessages.get(type).increment();
+    }
+
+    // "bytes" is the size on the wire, including the length prefix
+    public void recordOutbound(ResponseType type, int bytes) {
+        outboundMessages.get(type).increment();
+        outboundBytes.get(type).add(bytes);
+    }
+
+    public Histogram getHandlerNanos(RequestType type) {
+        return handlerNanos.get(type);
+    }
+
+    public Histogram getSensorQueueNanos() {
+        return sensorQueueNanos;
+    }
+
+    public StripedCounter getSensorsRateLimited() {
+        return sensorsRateLimited;
+    }
+
+    public StripedCounter getSensorsCoalesced() {
+        return sensorsCoalesced;
+    }
+
+    public Histogram getTouchDecodeNanos() {
+        return touchDecodeNanos;
+    }
+
+    public StripedCounter getTouchDecodeFallbacks() {
+        return touchDecodeFallbacks;
+    }
+
+    public Histogram getTouchBuildNanos() {
+        return touchBuildNanos;
+    }
+
+    public Histogram getInputQueueNanos() {
+        return inputQueueNanos;
+    }
+
+    public Histogram getInjectNanos() {
+        return injectNanos;
+    }
+
+    public StripedCounter getInjectFailures() {
+        return injectFailures;
+    }
+
+    public StripedCounter getCoalescedMoves() {
+        return coalescedMoves;
+    }
+
+    public Histogram getInputAgeNanos() {
+        return inputAgeNanos;
+    }
+
+    public StripedCounter getStaleMovesDropped() {
+        return staleMovesDropped;
+    }
+
+    public StripedCounter getStaleMovesFolded() {
+        return staleMovesFolded;
+    }
+
+    // every counter and histogram that has seen any traffic
+    public void writeTo(SnapshotWriter out) throws IOException {
+        out.section("metrics");
+        for (RequestType type : RequestType.values()) {
+            long count = inboundMessages.get(type).get();
+            if (count > 0) {
+                out.counter("in." + type + ".messages", count);
+                out.histogram("in." + type + ".handler", handlerNanos.get(type));
+            }
+        }
+        for (ResponseType type : ResponseType.values()) {
+            long count = outboundMessages.get(type).get();
+            if (count > 0) {
+                out.counter("out." + type + ".messages", count);
+                out.counter("out." + type + ".bytes", outboundBytes.get(type).get());
+            }
+        }
+        out.histogram("sensor.queueDelay", sensorQueueNanos);
+        out.counter("sensor.rateLimited", sensorsRateLimited.get());
+        out.counter("sensor.coalesced", sensorsCoalesced.get());
+        out.histogram("touch.decode", touchDecodeNanos);
+        out.counter("touch.decodeFallbacks", touchDecodeFallbacks.get());
+        out.histogram("touch.build", touchBuildNanos);
+        out.histogram("input.queueDelay", inputQueueNanos);
+        out.histogram("input.inject", injectNanos);
+        out.counter("input.injectFailures", injectFailures.get());
+        out.counter("input.coalescedMoves", coalescedMoves.get());
+        out.histogram("input.age", inputAgeNanos);
+        out.counter("input.staleMovesDropped", staleMovesDropped.get());
+        out.counter("input.staleMovesFolded", staleMovesFolded.get());
+    }
+
+    // one line per type that has seen any traffic, times in microseconds
+    public List<String> getSummary() {
+        List<String> summary = new ArrayList<String>();
+        for (RequestType type : RequestType.values()) {
+            long count = inboundMessages.get(type).get();
+            if (count > 0)
+                summary.add(String.format("in %s: %d messages, handler %s", type, count,
+                        handlerNanos.get(type).format(1000, "us")));
+        }
+        for (ResponseType type : ResponseType.values()) {
+            long count = outboundMessages.get(type).get();
+            if (count > 0)
+                summary.add(String.format("out %s: %d messages, %d bytes", type, count, outboundBytes.get(type).get()));
+        }
+        if (sensorQueueNanos.getCount() > 0)
+            summary.add("sensor queue delay: " + sensorQueueNanos.format(1000, "us") + ", rate limited="
+                    + sensorsRateLimited.get() + ", coalesced=" + sensorsCoalesced.get());
+        if (touchDecodeNanos.getCount() > 0 || touchDecodeFallbacks.get() > 0)
+            summary.add("touch decoding: " + touchDecodeNanos.format(1000, "us") + ", fallbacks="
+                    + touchDecodeFallbacks.get());
+        if (touchBuildNanos.getCount() > 0)
+            summary.add("touch event translation: " + touchBuildNanos.format(1000, "us"));
+        if (injectNanos.getCount() > 0) {
+            summary.add("input queue delay: " + inputQueueNanos.format(1000, "us"));
+            summary.add("input injection: " + injectNanos.format(1000, "us") + ", failures=" + injectFailures.get()
+                    + ", coalesced moves=" + coalescedMoves.get());
+        }
+        if (inputAgeNanos.getCount() > 0)
+            summary.add("touch age at injection: " + inputAgeNanos.format(1000, "us") + ", stale moves dropped="
+                    + staleMovesDropped.get() + ", folded=" + staleMovesFolded.get());
+        return summary;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events.metrics;
+
+import java.io.IOException;
+
+/**
+ * Receives a diagnostics snapshot, one named value at a time, grouped into sections.
+ */
+public interface SnapshotWriter {
+    public void section(String name) throws IOException;
+
+    public void counter(String name, long value) throws IOException;
+
+    public void histogram(String name, Histogram histogram) throws IOException;
+
+    public void text(String name, String value) throws IOException;
+
+    // called once after the last value
+    public void finish() throws IOException;
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2014 The MITRE Corporation, All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this work except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.mitre.svmp.events.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Writes a snapshot as human readable text, one "name: value" line per value. Times are in microseconds.
+ */
+public class TextSnapshotWriter implements SnapshotWriter {
+    private final PrintWriter writer;
+
+    public TextSnapshotWriter(OutputStream out) {
+        writer = new PrintWriter(new OutputStreamWriter(out));
+    }
+
+    public void section(String name) {
+        writer.println();
+        writer.println("[" + name + "]");
+    }
+
+    public void counter(String name, long value) {
+        writer.println(name + ": " + value);
+    }
+
+    public void histogram(String name, Histogram histogram) {
+        writer.println(name + ": " + histogram.format(1000, "us"));
+    }
+
+    public void text(String name, String value) {
+        writer.println(name + ": " + value);
+    }
+
+    public void finish() throws IOException {
+        writer.flush();
+        if (writer.checkError())
+            throw new IOException("Error writing diagnostics snapshot");
+    }
+}